@@ -16,12 +16,18 @@ public class Test4 extends Thread{
     //Helper global variables
     private int testCase = -1;
     private boolean cacheStatus = false;
-    private static final int blockSize = 512, blockSector = 10;
+    private static final int blockSector = 10;
+    //Random accesses pick blocks among the first diskRange blocks
+    private static final int diskRange = 512;
+    //Buffers are one disk block, whatever size ThreadOS was booted with
+    private final int blockSize = Disk.blockSize;
     private static final int arraySize = 250;
     private long blockReadStart, blockReadEnd;
     private long blockWriteStart, blockWriteEnd;
     private Random randNum;
     private String label;
+    //Cache hits and misses at the start of the current test
+    private long[] cacheStats = new long[2];
 
     /**
      * Constructor which parses in the command line arguments and
@@ -61,6 +67,7 @@ public class Test4 extends Thread{
      */
     public void run(){
         SysLib.flush();
+        SysLib.cstats(cacheStats);
 
         switch (testCase){
             case 1: randomAccessTest();
@@ -113,7 +120,7 @@ public class Test4 extends Thread{
         blockWriteStart = getTime();
         for (int i = 0; i < arraySize; i++)
         {
-            int randIndex = randInt(blockSize);
+            int randIndex = randInt(diskRange);
             index.add(randIndex);
             write(randIndex, writeBlock);
         }
@@ -198,7 +205,7 @@ public class Test4 extends Thread{
             if (i >= arraySize * 0.9)
             {
                 // This is the localizedAccessTest portion
-                randIndex = randInt(blockSize);
+                randIndex = randInt(diskRange);
             }
             else
             {
@@ -331,6 +338,24 @@ public class Test4 extends Thread{
         SysLib.cout("Average Write Time: " + avgWriteTime() +"ms\n");
         SysLib.cout("Average Read Time: " + avgReadTime() +"ms\n" );
         SysLib.cout("Execution Time: " + execTime() + "ms\n");
+        if(cacheStatus)
+        {
+            SysLib.cout("Hit Ratio: " + hitRatio() + "%\n");
+        }
+    }
+
+    /**
+     * Gets the percentage of the cache accesses of the current test that
+     * were hits, then starts counting for the next test
+     */
+    public long hitRatio()
+    {
+        long[] stats = new long[2];
+        SysLib.cstats(stats);
+        long hits = stats[0] - cacheStats[0];
+        long accesses = hits + stats[1] - cacheStats[1];
+        cacheStats = stats;
+        return (accesses > 0) ? hits * 100 / accesses : 0;
     }
 
     /**
@@ -0,0 +1,62 @@
+/**
+ * Purpose - Testing program for the sharded Cache.java. Measures how many
+ * cache hits per second 1, 2, 4, ... up to maxThreads TestThread4b threads
+ * get together, all reading blocks that stay cached. Boot ThreadOS with
+ * "cacheshards=<n>" to compare a single lock against n of them.
+ * Usage - l Test4b maxThreads [blocks]
+ */
+public class Test4b extends Thread
+{
+    //Threads spawned in the last round
+    private int maxThreads;
+    //Blocks the threads read, at most the size of the cache
+    private int blocks = 10;
+    //Hits each thread makes per round
+    private static final int hitsPerThread = 2000000;
+
+    /**
+     * Constructor which parses in the command line arguments
+     */
+    public Test4b(String args[])
+    {
+        maxThreads = Integer.parseInt(args[0]);
+        if (args.length > 1)
+        {
+            blocks = Integer.parseInt(args[1]);
+        }
+    }
+
+    /**
+     * Caches the blocks, then runs one round per thread count, doubling the
+     * threads every round.
+     */
+    public void run()
+    {
+        SysLib.flush();
+        byte[] buffer = new byte[Disk.blockSize];
+        for (int i = 0; i < blocks; i++)
+        {
+            SysLib.cread(i, buffer);
+        }
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            TestThread4b.reset(threads);
+            for (int i = 0; i < threads; i++)
+            {
+                SysLib.exec(SysLib.stringToArgs("TestThread4b " + i + " "
+                                                + blocks + " "
+                                                + hitsPerThread));
+            }
+            for (int i = 0; i < threads; i++)
+            {
+                SysLib.join();
+            }
+            long time = Math.max(TestThread4b.getElapsed(), 1);
+            SysLib.cout("Threads: " + threads + " Hits: "
+                        + (long)threads * hitsPerThread + " Time: " + time
+                        + "ms Hits per second: "
+                        + (long)threads * hitsPerThread * 1000 / time + "\n");
+        }
+        SysLib.exit();
+    }
+}
@@ -0,0 +1,20 @@
+// A device the kernel sends disk requests to. read, write and sync return
+// a ticket, or -1 if the request was not accepted. When a request is done
+// the device raises SysLib.disk( ticket ), and the kernel collects it with
+// testAndResetReady( ticket ). Blocks are Disk.blockSize bytes.
+public interface BlockDevice {
+    // Reads count consecutive blocks starting at blockId
+    int read( int blockId, byte buffer[], int count );
+
+    // Writes count consecutive blocks starting at blockId
+    int write( int blockId, byte buffer[], int count );
+
+    // Writes the device contents back to the DISK file
+    int sync( );
+
+    boolean testAndResetReady( int ticket );
+
+    boolean validRange( int blockId, int count );
+
+    void start( );
+}
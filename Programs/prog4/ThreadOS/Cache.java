@@ -9,11 +9,16 @@ import java.util.*;
 
 public class Cache
 {
-  //Private class object which is an array of page entries
-  PageEntry[] pageTable;
-  private int victim, blockSize;
+  //Blocks are spread over the shards by blockId
+  private Shard[] shards;
+  private int blockSize;
   private final static int EMPTY_BLOCK = -1;
   private final static int NOT_FOUND = Integer.MIN_VALUE;
+  //The flusher wakes up every flushPeriod ms, and writes back every block
+  //dirty for dirtyAge ms. If more than a half of a shard is dirty, it also
+  //writes back the oldest dirty blocks until only a quarter is.
+  private final static int flushPeriod = 100;
+  private final static int dirtyAge = 1000;
 
   //Contains necessary values for a page entry
   private class PageEntry
@@ -21,6 +26,11 @@ public class Cache
     byte[] blockData;
     int blockId;
     boolean referenceBit, dirtyBit;
+    //Writes so far, and when the block last became dirty
+    int version;
+    long dirtySince;
+    //Being written back by the flusher
+    boolean flushing;
 
     private PageEntry(int blockSize)
     {
@@ -35,216 +45,1140 @@ public class Cache
   }
 
   /**
-   * Constructor which insubstantiates the pageTable with page entries based
-   * on a blockSize. The victim value is also set here.
+   * Open addressing hash table from blockId to pageTable index, kept on two
+   * int arrays so a lookup neither scans the pageTable nor boxes the keys.
+   * Collisions are resolved with linear probing. The table is at most half
+   * full, so a probe sequence stays short.
    */
-  public Cache(int blockSize, int cacheBlocks)
+  private class BlockIndex
   {
-    //cacheBlocks really refers to pageSize
-    pageTable = new PageEntry[cacheBlocks];
-    this.blockSize = blockSize;
-    victim = cacheBlocks - 1;
-    for(int i = 0; i < pageTable.length; i++)
+    int[] keys, values;
+    int mask;
+
+    private BlockIndex(int entries)
+    {
+      //Smallest power of two at least twice the number of entries
+      int capacity = 2;
+      while(capacity < 2 * entries)
+        capacity <<= 1;
+      keys = new int[capacity];
+      values = new int[capacity];
+      mask = capacity - 1;
+      Arrays.fill(keys, EMPTY_BLOCK);
+    }
+
+    //Spreads consecutive blockIds over the table
+    private int slot(int blockId)
     {
-      //Initialize pageTable with proper size and default values
-      pageTable[i] = new PageEntry(blockSize);
+      int hash = blockId * 0x9E3779B9;
+      return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private int get(int blockId)
+    {
+      for(int i = slot(blockId); keys[i] != EMPTY_BLOCK; i = (i + 1) & mask)
+      {
+        if(keys[i] == blockId)
+          return values[i];
+      }
+      return NOT_FOUND;
+    }
+
+    private void put(int blockId, int index)
+    {
+      int i = slot(blockId);
+      while(keys[i] != EMPTY_BLOCK && keys[i] != blockId)
+        i = (i + 1) & mask;
+      keys[i] = blockId;
+      values[i] = index;
+    }
+
+    /**
+     * Removes the blockId, then moves back the entries after it that would
+     * otherwise no longer be found, so that no tombstones are needed
+     */
+    private void remove(int blockId)
+    {
+      int i = slot(blockId);
+      while(keys[i] != blockId)
+      {
+        if(keys[i] == EMPTY_BLOCK)
+          return;
+        i = (i + 1) & mask;
+      }
+      for(int j = (i + 1) & mask; keys[j] != EMPTY_BLOCK; j = (j + 1) & mask)
+      {
+        //An entry may fill the hole only if its home slot is not in (i, j]
+        int home = slot(keys[j]);
+        if(((j - home) & mask) >= ((j - i) & mask))
+        {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          i = j;
+        }
+      }
+      keys[i] = EMPTY_BLOCK;
     }
   }
 
   /**
-   * Reads into a byte buffer[] array with a valid blockId check. If the
-   * blockId is within the cache, the corresponding disk block is read from the
-   * disk. Otherwise an empty blockId is found to read. If an empty one cannot
-   * be found, the SCA is used to determine a victim.
+   * Decides which page entry of a shard to replace once the shard is full.
+   * The shard tells its policy about every block it brings in, every hit
+   * and every entry it empties.
    */
-  public synchronized boolean read(int blockId, byte buffer[])
+  private interface Policy
   {
-    if(blockId < 0)
+    //The entry at index holds a new blockId
+    void admitted(int index, int blockId);
+    //The block in the entry at index was read or written again
+    void accessed(int index);
+    //The entry at index no longer holds a block
+    void removed(int index);
+    //The index of the entry to replace to make room for the blockId. retry
+    //is set when an earlier call for the same miss offered an entry that
+    //could not be replaced.
+    int findVictim(int blockId, boolean retry);
+    //An entry returned by findVictim keeps its block after all
+    void kept(int index);
+  }
+
+  /**
+   * Helper method to create the policy named "sca" (the default), "arc" or
+   * "2q" over a shard's pageTable
+   */
+  private Policy newPolicy(String name, PageEntry[] pageTable)
+  {
+    if(name.equals("arc"))
+      return new AdaptivePolicy(pageTable);
+    if(name.equals("2q"))
+      return new TwoQueuePolicy(pageTable);
+    return new SecondChancePolicy(pageTable);
+  }
+
+  /**
+   * The enhanced second chance algorithm over the referenceBit and dirtyBit
+   * of each entry, which the shard sets on every access
+   */
+  private class SecondChancePolicy implements Policy
+  {
+    PageEntry[] pageTable;
+    private int victim;
+
+    private SecondChancePolicy(PageEntry[] pageTable)
     {
-      SysLib.cerr("Invalid blockId found");
-      return false;
+      this.pageTable = pageTable;
+      victim = pageTable.length - 1;
     }
-    else
+
+    public void admitted(int index, int blockId)
     {
-        int index = findBlock(blockId);
-        //If block is found in the Cache
-        if(index != NOT_FOUND)
-        {
-          //Reads from cache and sets appropriate values
-          readCache(index, blockId, buffer);
-          return true;
-        }
-        //If block is empty
-        index = findBlock(EMPTY_BLOCK);
-        if(index != NOT_FOUND)
-        {
-          //Read data from the disk, then copy to the buffer
-          SysLib.rawread(blockId, pageTable[index].blockData);
-          //Reads from cache and sets appropriate values
-          readCache(index, blockId, buffer);
-          return true;
+    }
+
+    public void accessed(int index)
+    {
+    }
+
+    public void removed(int index)
+    {
+    }
+
+    public void kept(int index)
+    {
+    }
+
+    /**
+     * Uses the SCA to determine a victim to find. Prefers entries neither
+     * referenced nor dirty, then ones not referenced, clearing referenceBits
+     * only once both have failed for a whole cycle.
+     */
+    public int findVictim(int blockId, boolean retry)
+    {
+      int cycle = victim;
+      boolean dirtyStatus = false, refStatus = false;
+      while (true)
+       {
+
+          victim = (victim + 1) % pageTable.length;
+          //Reset if victim is too large
+          if(victim >= pageTable.length)
+            victim = 0;
+
+      		if (!pageTable[victim].referenceBit && (!pageTable[victim].dirtyBit
+          || dirtyStatus))
+      			return victim;
+
+          //Cycle has been completed
+          if(victim == cycle)
+          {
+            if(dirtyStatus)
+              refStatus = true;
+              //Dirty bit overwrite
+            dirtyStatus = !dirtyStatus;
+          }
+
+          //Reset referenceBit
+          if(refStatus)
+      		  pageTable[victim].referenceBit = false;
         }
-        //Finds the victim, saves it to disk
-        diskWrite(findVictim());
-        //Reads the victim data
-        SysLib.rawread(blockId, pageTable[victim].blockData);
-        //Read from the caceh block
-       	readCache(victim, blockId, buffer);
-        return true;
     }
   }
+
   /**
-   *
-   *
+   * Adaptive Replacement Cache (ARC). Entries seen once are kept in recent,
+   * entries seen again in frequent, both in least recently used order.
+   * The blockIds of entries replaced from each list are remembered in a
+   * ghost list. A miss on a ghost shows which list was too short, and moves
+   * the target size of recent, so the policy adapts between recency and
+   * frequency. A scan only ever passes through recent.
    */
-  public synchronized boolean write(int blockId, byte buffer[])
+  private class AdaptivePolicy implements Policy
   {
-    if(blockId < 0)
+    PageEntry[] pageTable;
+    //Entry indices, the least recently used first
+    private IndexList recent, frequent;
+    //BlockIds replaced from recent and from frequent, the oldest first
+    private LinkedHashSet<Integer> recentGhosts, frequentGhosts;
+    //Target size of recent
+    private int target;
+    //Per entry, the list it was last taken from as a victim
+    private IndexList[] victimList;
+    //Recent fills the shard, so its victims are not remembered
+    private boolean recentFull;
+
+    private AdaptivePolicy(PageEntry[] pageTable)
     {
-      SysLib.cerr("Invalid blockId found");
-      return false;
+      this.pageTable = pageTable;
+      recent = new IndexList(pageTable.length);
+      frequent = new IndexList(pageTable.length);
+      victimList = new IndexList[pageTable.length];
+      recentGhosts = new LinkedHashSet<Integer>();
+      frequentGhosts = new LinkedHashSet<Integer>();
     }
-    else
+
+    public void admitted(int index, int blockId)
     {
-        int index = findBlock(blockId);
-        //If block is found in the Cache
-        if(index != NOT_FOUND)
-        {
-          //Reads from cache and sets appropriate values
-          addCache(index, blockId, buffer);
-          return true;
-        }
-        //Block is empty
-        index = findBlock(EMPTY_BLOCK);
-        if(index != NOT_FOUND)
-        {
-          //Add block to cache and sets appropriate values
-          addCache(index, blockId, buffer);
-          return true;
-        }
-        //Finds the victim, saves it to disk
-        diskWrite(findVictim());
-        //Adds the victim to cache
-        addCache(victim, blockId, buffer);
-        return true;
+      //A block remembered in a ghost list has been seen before
+      if(recentGhosts.remove(blockId) || frequentGhosts.remove(blockId))
+        frequent.addLast(index);
+      else
+        recent.addLast(index);
+    }
+
+    public void accessed(int index)
+    {
+      recent.remove(index);
+      frequent.remove(index);
+      frequent.addLast(index);
+    }
+
+    public void removed(int index)
+    {
+      recent.remove(index);
+      frequent.remove(index);
+    }
+
+    public void kept(int index)
+    {
+      recentGhosts.remove(pageTable[index].blockId);
+      frequentGhosts.remove(pageTable[index].blockId);
+      //Back at the least recently used end, where findVictim took it from
+      victimList[index].addFirst(index);
+    }
+
+    public int findVictim(int blockId, boolean retry)
+    {
+      //A miss adapts the policy once, however many entries it is offered
+      if(!retry)
+        adapt(blockId);
+      if(recentFull)
+      {
+        int index = recent.removeFirst();
+        victimList[index] = recent;
+        return index;
+      }
+      return replace(blockId);
+    }
+
+    /**
+     * A miss on a ghost moves the target size of recent. Any other miss
+     * trims the ghost lists, keeping recent and its ghosts within size
+     * entries, and all the lists within twice that.
+     */
+    private void adapt(int blockId)
+    {
+      int size = pageTable.length;
+      recentFull = false;
+      if(recentGhosts.contains(blockId))
+      {
+        //Recent was too short
+        target = Math.min(size, target + Math.max(
+          frequentGhosts.size() / recentGhosts.size(), 1));
+      }
+      else if(frequentGhosts.contains(blockId))
+      {
+        //Frequent was too short
+        target = Math.max(0, target - Math.max(
+          recentGhosts.size() / frequentGhosts.size(), 1));
+      }
+      else if(recent.size() + recentGhosts.size() >= size)
+      {
+        if(recent.size() < size)
+          removeFirst(recentGhosts);
+        else
+          recentFull = true;
+      }
+      else if(recent.size() + frequent.size() + recentGhosts.size()
+              + frequentGhosts.size() >= 2 * size)
+        removeFirst(frequentGhosts);
+    }
+
+    /**
+     * Replaces the least recently used entry of recent if it is over its
+     * target size, otherwise that of frequent, remembering its blockId
+     */
+    private int replace(int blockId)
+    {
+      if(!recent.isEmpty() && (recent.size() > target
+         || (frequentGhosts.contains(blockId) && recent.size() == target)
+         || frequent.isEmpty()))
+      {
+        int index = recent.removeFirst();
+        recentGhosts.add(pageTable[index].blockId);
+        victimList[index] = recent;
+        return index;
+      }
+      int index = frequent.removeFirst();
+      frequentGhosts.add(pageTable[index].blockId);
+      victimList[index] = frequent;
+      return index;
     }
   }
+
   /**
-   * Ensures the blocks have fresh copies, writes all dirtyBit blocks back
-   * to disk
+   * The 2Q algorithm. A block brought in joins firstIn, a first in first out
+   * queue a quarter of the shard long. Replaced from there, it is remembered
+   * in firstOut, and only if it is missed again while remembered does it
+   * join frequent, kept in least recently used order. Blocks used once, as
+   * in a scan, so never displace frequent.
    */
-  public synchronized void sync()
+  private class TwoQueuePolicy implements Policy
   {
-    //Go through all the page entries
-    for(int i = 0; i < pageTable.length; i++)
+    PageEntry[] pageTable;
+    //Entry indices, the oldest or least recently used first
+    private IndexList firstIn, frequent;
+    //BlockIds replaced from firstIn, the oldest first
+    private LinkedHashSet<Integer> firstOut;
+    private int firstInSize, firstOutSize;
+
+    private TwoQueuePolicy(PageEntry[] pageTable)
     {
-      //Check if the dirtyBit is set and the block is not empty, writes the
-      // dirtyBit block if true
-      if(pageTable[i].dirtyBit && pageTable[i].blockId != EMPTY_BLOCK)
-        diskWrite(i);
+      this.pageTable = pageTable;
+      firstIn = new IndexList(pageTable.length);
+      frequent = new IndexList(pageTable.length);
+      firstOut = new LinkedHashSet<Integer>();
+      firstInSize = Math.max(pageTable.length / 4, 1);
+      firstOutSize = Math.max(pageTable.length / 2, 1);
+    }
+
+    public void admitted(int index, int blockId)
+    {
+      if(firstOut.remove(blockId))
+        frequent.addLast(index);
+      else
+        firstIn.addLast(index);
+      //Trimmed once the miss is settled, so victims offered and kept do not
+      //push out older blockIds
+      while(firstOut.size() > firstOutSize)
+        removeFirst(firstOut);
+    }
+
+    public void accessed(int index)
+    {
+      //Hits in firstIn are likely part of the same burst, so do not count
+      if(frequent.remove(index))
+        frequent.addLast(index);
+    }
+
+    public void removed(int index)
+    {
+      firstIn.remove(index);
+      frequent.remove(index);
+    }
+
+    public void kept(int index)
+    {
+      //Back at the end findVictim took it from
+      if(firstOut.remove(pageTable[index].blockId))
+        firstIn.addFirst(index);
+      else
+        frequent.addFirst(index);
+    }
+
+    public int findVictim(int blockId, boolean retry)
+    {
+      if(firstIn.size() > firstInSize || frequent.isEmpty())
+      {
+        int index = firstIn.removeFirst();
+        firstOut.add(pageTable[index].blockId);
+        return index;
+      }
+      return frequent.removeFirst();
     }
-    //Sync disk
-    SysLib.sync();
   }
 
   /**
-   * Flushes all the cached blocks by setting them to the default status.
-   * Writes back dirtyBit blocks to disk
+   * Entry indices in order, kept as a doubly linked list on two int arrays,
+   * so that adding or removing an index at either end or anywhere in the
+   * list neither searches it nor boxes the indices. An index is in the list
+   * at most once.
+   */
+  private static class IndexList
+  {
+    int[] previous, next;
+    boolean[] listed;
+    int first = NOT_FOUND, last = NOT_FOUND, size;
+
+    private IndexList(int entries)
+    {
+      previous = new int[entries];
+      next = new int[entries];
+      listed = new boolean[entries];
+    }
+
+    private int size()
+    {
+      return size;
+    }
+
+    private boolean isEmpty()
+    {
+      return size == 0;
+    }
+
+    private void addLast(int index)
+    {
+      previous[index] = last;
+      next[index] = NOT_FOUND;
+      if(last == NOT_FOUND)
+        first = index;
+      else
+        next[last] = index;
+      last = index;
+      listed[index] = true;
+      size++;
+    }
+
+    private void addFirst(int index)
+    {
+      previous[index] = NOT_FOUND;
+      next[index] = first;
+      if(first == NOT_FOUND)
+        last = index;
+      else
+        previous[first] = index;
+      first = index;
+      listed[index] = true;
+      size++;
+    }
+
+    //Returns false if the index was not in the list
+    private boolean remove(int index)
+    {
+      if(!listed[index])
+        return false;
+      if(previous[index] == NOT_FOUND)
+        first = next[index];
+      else
+        next[previous[index]] = next[index];
+      if(next[index] == NOT_FOUND)
+        last = previous[index];
+      else
+        previous[next[index]] = previous[index];
+      listed[index] = false;
+      size--;
+      return true;
+    }
+
+    private int removeFirst()
+    {
+      int index = first;
+      remove(index);
+      return index;
+    }
+  }
+
+  /**
+   * Helper method to remove and return the first element of a set
+   */
+  private static int removeFirst(LinkedHashSet<Integer> set)
+  {
+    Iterator<Integer> first = set.iterator();
+    int value = first.next();
+    first.remove();
+    return value;
+  }
+
+  /**
+   * Count-min sketch of how often each blockId was accessed lately, for the
+   * TinyLFU admission filter. Each of four rows has a 4-bit counter per
+   * slot, sixteen to a long, and a blockId counts in one slot of every row;
+   * its frequency is the smallest of those counters. Once the shard has
+   * seen ten accesses per block, every counter is halved, so old
+   * popularity fades.
+   */
+  private class FrequencySketch
+  {
+    private final int[] seeds = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35,
+                                  0x27D4EB2F };
+    long[][] rows;
+    int mask;
+    private int additions, sampleSize;
+
+    private FrequencySketch(int cacheBlocks)
+    {
+      //Smallest power of two at least twice the number of blocks
+      int width = 16;
+      while(width < 2 * cacheBlocks)
+        width <<= 1;
+      rows = new long[seeds.length][width / 16];
+      mask = width - 1;
+      sampleSize = 10 * cacheBlocks;
+    }
+
+    //The slot of the blockId in a row
+    private int slot(int blockId, int row)
+    {
+      int hash = (blockId + row) * seeds[row];
+      return (hash ^ (hash >>> 15)) & mask;
+    }
+
+    private int counter(int row, int slot)
+    {
+      return (int)(rows[row][slot >>> 4] >>> ((slot & 15) << 2)) & 15;
+    }
+
+    private void increment(int blockId)
+    {
+      for(int row = 0; row < rows.length; row++)
+      {
+        int slot = slot(blockId, row);
+        if(counter(row, slot) < 15)
+          rows[row][slot >>> 4] += 1L << ((slot & 15) << 2);
+      }
+      if(++additions >= sampleSize)
+      {
+        //Halves every counter at once, four bits at a time
+        for(int row = 0; row < rows.length; row++)
+          for(int i = 0; i < rows[row].length; i++)
+            rows[row][i] = (rows[row][i] >>> 1) & 0x7777777777777777L;
+        additions /= 2;
+      }
+    }
+
+    private int frequency(int blockId)
+    {
+      int frequency = 15;
+      for(int row = 0; row < rows.length; row++)
+        frequency = Math.min(frequency, counter(row, slot(blockId, row)));
+      return frequency;
+    }
+  }
+
+  /**
+   * One part of the cache, holding the blocks whose blockId falls to it.
+   * Each shard has its own page entries and clock hand, and its own lock,
+   * so threads working on different shards do not wait for each other,
+   * not even while one of them waits for the disk.
    */
-  public synchronized void flush()
+  private class Shard
   {
-    //Go through all page entries
-    for(int i = 0; i < pageTable.length; i++)
+    //Private class object which is an array of page entries
+    PageEntry[] pageTable;
+    //Picks the entry to replace once the shard is full
+    private Policy policy;
+    //Recent access counts for admission, or null to admit every block
+    private FrequencySketch sketch;
+    //Missed blocks that were not let in
+    private long rejections;
+    //Victims that were dirty, and blocks the flusher wrote back
+    private long dirtyVictims, writebacks;
+    //Accesses found in the shard, and accesses that had to go to disk
+    private long hits, misses;
+    //Maps the blockId of every cached block to its index in the pageTable
+    private BlockIndex blockIndex;
+    //Stack of the indices of the empty page entries
+    private int[] freeFrames;
+    private int freeCount;
+    //Victims passed over by findVictim, in the order they were offered
+    private int[] skipped;
+
+    /**
+     * Constructor which insubstantiates the pageTable with page entries based
+     * on a blockSize. The replacement policy and, if admission is set, the
+     * admission filter are also set here.
+     */
+    private Shard(int cacheBlocks, String policyName, boolean admission)
+    {
+      //cacheBlocks really refers to pageSize
+      pageTable = new PageEntry[cacheBlocks];
+      blockIndex = new BlockIndex(cacheBlocks);
+      freeFrames = new int[cacheBlocks];
+      skipped = new int[cacheBlocks];
+      for(int i = 0; i < pageTable.length; i++)
+      {
+        //Initialize pageTable with proper size and default values
+        pageTable[i] = new PageEntry(blockSize);
+      }
+      //Every page entry is empty, the lowest index on top
+      for(int i = pageTable.length - 1; i >= 0; i--)
+        freeFrames[freeCount++] = i;
+      policy = newPolicy(policyName, pageTable);
+      if(admission)
+        sketch = new FrequencySketch(cacheBlocks);
+    }
+
+    /**
+     * Reads into a byte buffer[] array. If the blockId is within the cache,
+     * the corresponding disk block is read from the disk. Otherwise an empty
+     * blockId is found to read. If an empty one cannot be found, the policy
+     * is used to determine a victim. A block the admission filter turns away
+     * is read straight into the buffer.
+     */
+    synchronized boolean read(int blockId, byte buffer[])
+    {
+      if(sketch != null)
+        sketch.increment(blockId);
+      int index = findBlock(blockId);
+      //If block is found in the Cache
+      if(index != NOT_FOUND)
+      {
+        hits++;
+        //Reads from cache and sets appropriate values
+        readCache(index, blockId, buffer);
+        return true;
+      }
+      misses++;
+      //If an empty block is left
+      index = findEmpty();
+      if(index != NOT_FOUND)
+      {
+        //Read data from the disk, then copy to the buffer
+        SysLib.rawread(blockId, pageTable[index].blockData);
+        //Reads from cache and sets appropriate values
+        readCache(index, blockId, buffer);
+        return true;
+      }
+      //Finds the victim, saves it to disk
+      index = findVictim(blockId);
+      if(index == NOT_FOUND)
+      {
+        //While the flusher was waited for, another thread read the block in
+        //or a flush emptied entries
+        index = findBlock(blockId);
+        if(index == NOT_FOUND)
+        {
+          index = findEmpty();
+          SysLib.rawread(blockId, pageTable[index].blockData);
+        }
+        readCache(index, blockId, buffer);
+        return true;
+      }
+      if(!admit(index, blockId))
+      {
+        SysLib.rawread(blockId, buffer);
+        return true;
+      }
+      if(pageTable[index].dirtyBit)
+        dirtyVictims++;
+      diskWrite(index);
+      //Reads the victim data
+      SysLib.rawread(blockId, pageTable[index].blockData);
+      //Read from the caceh block
+     	readCache(index, blockId, buffer);
+      return true;
+    }
+    /**
+     * Writes a byte buffer[] array into the cache, in the entry of the
+     * blockId, an empty entry or the victim of the policy. A block the
+     * admission filter turns away is written straight to disk.
+     */
+    synchronized boolean write(int blockId, byte buffer[])
     {
-      //If the block is empty, skip it as the other bits sholdn't be touched
-      if(pageTable[i].blockId != EMPTY_BLOCK)
-        continue;
-      //If the block has the dirty bit set, write the data to disk
-      if(pageTable[i].dirtyBit)
-        diskWrite(i);
+      if(sketch != null)
+        sketch.increment(blockId);
+      int index = findBlock(blockId);
+      //If block is found in the Cache
+      if(index != NOT_FOUND)
+      {
+        hits++;
+        //Reads from cache and sets appropriate values
+        addCache(index, blockId, buffer);
+        return true;
+      }
+      misses++;
+      //If an empty block is left
+      index = findEmpty();
+      if(index != NOT_FOUND)
+      {
+        //Add block to cache and sets appropriate values
+        addCache(index, blockId, buffer);
+        return true;
+      }
+      //Finds the victim, saves it to disk
+      index = findVictim(blockId);
+      if(index == NOT_FOUND)
+      {
+        //While the flusher was waited for, another thread read the block in
+        //or a flush emptied entries
+        index = findBlock(blockId);
+        if(index == NOT_FOUND)
+          index = findEmpty();
+        addCache(index, blockId, buffer);
+        return true;
+      }
+      if(!admit(index, blockId))
+      {
+        SysLib.rawwrite(blockId, buffer);
+        return true;
+      }
+      if(pageTable[index].dirtyBit)
+        dirtyVictims++;
+      diskWrite(index);
+      //Adds the victim to cache
+      addCache(index, blockId, buffer);
+      return true;
+    }
+    /**
+     * Writes all dirtyBit blocks of the shard back to disk
+     */
+    synchronized void sync()
+    {
+      //Go through all the page entries
+      for(int i = 0; i < pageTable.length; i++)
+      {
+        //A block the flusher is writing is written again only if it was
+        //changed meanwhile, and after the flusher
+        while(pageTable[i].flushing)
+          waitForWriteback();
+        //Check if the dirtyBit is set and the block is not empty, writes the
+        // dirtyBit block if true
+        if(pageTable[i].dirtyBit && pageTable[i].blockId != EMPTY_BLOCK)
+          diskWrite(i);
+      }
+    }
+
+    /**
+     * Flushes all the cached blocks of the shard by setting them to the
+     * default status. Writes back dirtyBit blocks to disk
+     */
+    synchronized void flush()
+    {
+      //Go through all page entries
+      for(int i = 0; i < pageTable.length; i++)
+      {
+        while(pageTable[i].flushing)
+          waitForWriteback();
+        //If the block is empty, skip it as the other bits sholdn't be touched
+        if(pageTable[i].blockId == EMPTY_BLOCK)
+          continue;
+        //If the block has the dirty bit set, write the data to disk
+        if(pageTable[i].dirtyBit)
+          diskWrite(i);
         //Flushes the rest of the block values
+        blockIndex.remove(pageTable[i].blockId);
+        policy.removed(i);
         pageTable[i].blockId = EMPTY_BLOCK;
         pageTable[i].dirtyBit = false;
         pageTable[i].referenceBit = false;
+        freeFrames[freeCount++] = i;
+      }
+    }
+
+    /**
+     * Writes to the disk to save the data before it's removed.
+     * Done by checking if the dirty bit has been set, then writes it with
+     * rawwrite and sets the dirty bit back
+     */
+    private void diskWrite(int victimIndex)
+    {
+  		if(pageTable[victimIndex].dirtyBit
+      && pageTable[victimIndex].blockId != EMPTY_BLOCK)
+      {
+  			SysLib.rawwrite(pageTable[victimIndex].blockId,
+         pageTable[victimIndex].blockData);
+         //Set dity bit to false
+  			pageTable[victimIndex].dirtyBit = false;
+  		}
+    }
+
+    /**
+     * Picks a victim with the policy, passing over the entries the flusher
+     * is writing back, since the block must not be written or read again
+     * before the flusher's write is done. The entries passed over are given
+     * back to the policy in reverse, so they return to where they were. If
+     * the flusher is writing every entry the policy offers, waits for it.
+     * Another thread may have read the blockId in meanwhile, or a flush may
+     * have emptied entries, and then NOT_FOUND is returned.
+     */
+    private int findVictim(int blockId)
+    {
+      int skippedCount = 0;
+      for(int tries = 1; ; tries++)
+      {
+        int index = policy.findVictim(blockId, tries > 1);
+        if(!pageTable[index].flushing)
+        {
+          keepSkipped(skippedCount);
+          return index;
+        }
+        skipped[skippedCount++] = index;
+        if(tries % pageTable.length == 0)
+        {
+          //The lock is let go while waiting, so the policy gets them first
+          keepSkipped(skippedCount);
+          skippedCount = 0;
+          waitForWriteback();
+          if(findBlock(blockId) != NOT_FOUND || freeCount > 0)
+            return NOT_FOUND;
+        }
+      }
+    }
+
+    private void keepSkipped(int skippedCount)
+    {
+      for(int i = skippedCount - 1; i >= 0; i--)
+        policy.kept(skipped[i]);
+    }
+
+    private void waitForWriteback()
+    {
+      try
+      {
+        wait();
+      }
+      catch(InterruptedException e)
+      {
+      }
+    }
+
+    /**
+     * Marks the dirty entries the flusher should write back and adds copies
+     * of them to writes: those dirty for dirtyAge ms or more and, if more than
+     * a half of the shard is dirty, the oldest of the others until only a
+     * quarter would be
+     */
+    synchronized void startWriteback(Vector<Writeback> writes)
+    {
+      Vector<Integer> dirty = new Vector<Integer>();
+      for(int i = 0; i < pageTable.length; i++)
+      {
+        if(pageTable[i].dirtyBit && !pageTable[i].flushing
+           && pageTable[i].blockId != EMPTY_BLOCK)
+          dirty.add(i);
+      }
+      //Oldest first
+      Collections.sort(dirty, new Comparator<Integer>()
+      {
+        public int compare(Integer a, Integer b)
+        {
+          return Long.compare(pageTable[a].dirtySince,
+                              pageTable[b].dirtySince);
+        }
+      });
+      int excess = (dirty.size() > pageTable.length / 2)
+        ? dirty.size() - pageTable.length / 4 : 0;
+      long now = System.currentTimeMillis();
+      for(int i = 0; i < dirty.size(); i++)
+      {
+        PageEntry entry = pageTable[dirty.get(i)];
+        if(i >= excess && now - entry.dirtySince < dirtyAge)
+          break;
+        entry.flushing = true;
+        writes.add(new Writeback(this, dirty.get(i), entry));
+      }
+    }
+
+    /**
+     * The flusher has written the copy back. The entry is clean unless it
+     * was written again meanwhile.
+     */
+    synchronized void finishWriteback(Writeback write)
+    {
+      PageEntry entry = pageTable[write.index];
+      entry.flushing = false;
+      if(entry.version == write.version)
+        entry.dirtyBit = false;
+      writebacks++;
+      notifyAll();
+    }
+
+    /**
+     * TinyLFU: a missed blockId takes the victim's entry only if it has been
+     * accessed more often lately. Otherwise the victim is kept.
+     */
+    private boolean admit(int victimIndex, int blockId)
+    {
+      if(sketch == null || sketch.frequency(blockId)
+         > sketch.frequency(pageTable[victimIndex].blockId))
+        return true;
+      policy.kept(victimIndex);
+      rejections++;
+      return false;
+    }
+
+    /**
+     * Helper method to find a specified block and return the index in the
+     * pageTable. Otherwise the NOT_FOUND value is returned
+     */
+    private int findBlock(int valToFind)
+    {
+      return blockIndex.get(valToFind);
+    }
+
+    /**
+     * Helper method to take an empty block and return its index in the
+     * pageTable. Otherwise the NOT_FOUND value is returned
+     */
+    private int findEmpty()
+    {
+      return (freeCount > 0) ? freeFrames[--freeCount] : NOT_FOUND;
+    }
+
+    /**
+     * Sets the blockId of the entry at index, moving its blockIndex mapping
+     * from the block it held before
+     */
+    private void setBlock(int index, int blockId)
+    {
+      if(pageTable[index].blockId == blockId)
+      {
+        policy.accessed(index);
+        return;
+      }
+      if(pageTable[index].blockId != EMPTY_BLOCK)
+        blockIndex.remove(pageTable[index].blockId);
+      pageTable[index].blockId = blockId;
+      blockIndex.put(blockId, index);
+      policy.admitted(index, blockId);
+    }
+
+    /**
+     * Adds the hits, misses, rejections, dirty victims and writebacks of the
+     * shard to stats[0] to stats[4]
+     */
+    synchronized void getStats(long stats[])
+    {
+      stats[0] += hits;
+      stats[1] += misses;
+      stats[2] += rejections;
+      stats[3] += dirtyVictims;
+      stats[4] += writebacks;
+    }
+
+    /**
+     * Reads a value from the cache based on the blockId, index in the pageTable
+     * and the buffer byte[] to add. The referenceBit is set to indicate read
+     * status.
+     */
+    private void readCache(int index, int blockId, byte[] buffer)
+    {
+      //Copy byte array from blockData into buffer
+      System.arraycopy(pageTable[index].blockData, 0, buffer, 0, blockSize);
+      //Necessary status set for the entry
+      setBlock(index, blockId);
+      pageTable[index].referenceBit = true;
+    }
+    /**
+     * Adds a value to the cache based on the blockId, index in the pageTable
+     * and the buffer byte[] to add. The dirtyBit and referenceBit are set to
+     * indicate the read and wrote status.
+     */
+    private void addCache(int index, int blockId, byte[] buffer)
+    {
+        //Copy byte array from buffer into blockData
+        System.arraycopy(buffer, 0, pageTable[index].blockData, 0, blockSize);
+        //Necessary status set for the entry
+        if(!pageTable[index].dirtyBit)
+          pageTable[index].dirtySince = System.currentTimeMillis();
+        pageTable[index].dirtyBit = true;
+        pageTable[index].version++;
+        setBlock(index, blockId);
+        pageTable[index].referenceBit = true;
     }
-    //Sync disk
-    SysLib.sync();
   }
 
   /**
-   * Writes to the disk to save the data before it's removed.
-   * Done by checking if the dirty bit has been set, then writes it with
-   * rawwrite and sets the dirty bit back
+   * A copy of a dirty block, taken for the flusher to write back
    */
-  private void diskWrite(int victimIndex)
+  private class Writeback
   {
-		if(pageTable[victimIndex].dirtyBit
-    && pageTable[victimIndex].blockId != EMPTY_BLOCK)
+    Shard shard;
+    int index, blockId, version;
+    byte[] blockData;
+
+    private Writeback(Shard shard, int index, PageEntry entry)
     {
-			SysLib.rawwrite(pageTable[victimIndex].blockId,
-       pageTable[victimIndex].blockData);
-       //Set dity bit to false
-			pageTable[victimIndex].dirtyBit = false;
-		}
+      this.shard = shard;
+      this.index = index;
+      blockId = entry.blockId;
+      version = entry.version;
+      blockData = entry.blockData.clone();
+    }
   }
 
   /**
-   * Assumes victim here is already set to last index of the pageTable. Uses
-   * the SCA to determine a victim to find
+   * Writes dirty blocks back in the background, so that a miss seldom has to
+   * write its victim first. Each round collects the blocks due from every
+   * shard and writes them in blockId order, so the disk sweeps across them
+   * once. The shards are not locked while the blocks are written.
    */
-  private int findVictim()
+  private class Flusher extends Thread
   {
-    while (true)
-     {
-    		victim = (victim + 1) % pageTable.length;
-    		if (!pageTable[victim].referenceBit)
+    public void run()
+    {
+      while(true)
+      {
+        try
+        {
+          Thread.sleep(flushPeriod);
+        }
+        catch(InterruptedException e)
+        {
+        }
+        Vector<Writeback> writes = new Vector<Writeback>();
+        for(int i = 0; i < shards.length; i++)
+          shards[i].startWriteback(writes);
+        Collections.sort(writes, new Comparator<Writeback>()
         {
-    			return victim;
-    		}
-    		pageTable[victim].referenceBit = false;
+          public int compare(Writeback a, Writeback b)
+          {
+            return Integer.compare(a.blockId, b.blockId);
+          }
+        });
+        for(int i = 0; i < writes.size(); i++)
+        {
+          Writeback write = writes.get(i);
+          SysLib.rawwrite(write.blockId, write.blockData);
+          write.shard.finishWriteback(write);
+        }
       }
+    }
+  }
+
+  /**
+   * Constructor for a cache of cacheBlocks blocks under a single lock,
+   * replaced with the SCA
+   */
+  public Cache(int blockSize, int cacheBlocks)
+  {
+    this(blockSize, cacheBlocks, 1, "sca", false);
   }
+
   /**
-   * Helper method to find a specified block and return the index in the
-   * pageTable. Otherwise the NOT_FOUND value is returned
+   * Constructor which spreads cacheBlocks blocks over shardCount shards as
+   * evenly as possible. There are never more shards than blocks. Each shard
+   * replaces its blocks with the named policy: "sca", "arc" or "2q". With
+   * admission, a TinyLFU filter lets a missed block replace the victim only
+   * if it was accessed more often lately, which keeps scans from flushing
+   * the cache.
    */
-  private int findBlock(int valToFind)
+  public Cache(int blockSize, int cacheBlocks, int shardCount, String policy,
+               boolean admission)
   {
-    for (int i = 0; i < pageTable.length; i++)
+    this.blockSize = blockSize;
+    shardCount = Math.max(1, Math.min(shardCount, cacheBlocks));
+    shards = new Shard[shardCount];
+    for(int i = 0; i < shards.length; i++)
     {
-      if(pageTable[i].blockId == valToFind)
-      {
-        return i;
-      }
+      //The first cacheBlocks % shardCount shards take one block more
+      int blocks = cacheBlocks / shardCount;
+      if(i < cacheBlocks % shardCount)
+        blocks++;
+      shards[i] = new Shard(blocks, policy, admission);
     }
-    return NOT_FOUND;
   }
 
   /**
-   * Reads a value from the cache based on the blockId, index in the pageTable
-   * and the buffer byte[] to add. The referenceBit is set to indicate read
-   * status.
+   * Reads into a byte buffer[] array with a valid blockId check, from the
+   * shard of the blockId
    */
-  private void readCache(int index, int blockId, byte[] buffer)
+  public boolean read(int blockId, byte buffer[])
   {
-    //Copy byte array from blockData into buffer
-    System.arraycopy(pageTable[index].blockData, 0, buffer, 0, blockSize);
-    //Necessary status set for the entry
-    pageTable[index].blockId = blockId;
-    pageTable[index].referenceBit = true;
+    if(blockId < 0)
+    {
+      SysLib.cerr("Invalid blockId found");
+      return false;
+    }
+    return shard(blockId).read(blockId, buffer);
   }
+
   /**
-   * Adds a value to the cache based on the blockId, index in the pageTable
-   * and the buffer byte[] to add. The dirtyBit and referenceBit are set to
-   * indicate the read and wrote status.
+   * Writes a byte buffer[] array with a valid blockId check, into the shard
+   * of the blockId
    */
-  private void addCache(int index, int blockId, byte[] buffer)
+  public boolean write(int blockId, byte buffer[])
   {
-      //Copy byte array from buffer into blockData
-      System.arraycopy(buffer, 0, pageTable[index].blockData, 0, blockSize);
-      //Necessary status set for the entry
-      pageTable[index].dirtyBit = true;
-      pageTable[index].blockId = blockId;
-      pageTable[index].referenceBit = true;
+    if(blockId < 0)
+    {
+      SysLib.cerr("Invalid blockId found");
+      return false;
+    }
+    return shard(blockId).write(blockId, buffer);
+  }
+
+  /**
+   * Ensures the blocks have fresh copies, writes all dirtyBit blocks back
+   * to disk
+   */
+  public void sync()
+  {
+    for(int i = 0; i < shards.length; i++)
+      shards[i].sync();
+    //Sync disk
+    SysLib.sync();
+  }
+
+  /**
+   * Flushes all the cached blocks by setting them to the default status.
+   * Writes back dirtyBit blocks to disk
+   */
+  public void flush()
+  {
+    for(int i = 0; i < shards.length; i++)
+      shards[i].flush();
+    //Sync disk
+    SysLib.sync();
+  }
+
+  /**
+   * Starts writing dirty blocks back in the background. Without it, blocks
+   * are written back only as victims or on sync and flush.
+   */
+  public void startFlusher()
+  {
+    new Flusher().start();
+  }
+
+  /**
+   * Gets the number of reads and writes that found their block in the cache,
+   * the number that did not, how many of those the admission filter kept
+   * out of the cache, how many replaced a dirty block, and how many blocks
+   * the flusher wrote back
+   */
+  public long[] getStats()
+  {
+    long[] stats = new long[5];
+    for(int i = 0; i < shards.length; i++)
+      shards[i].getStats(stats);
+    return stats;
+  }
+
+  /**
+   * Helper method to find the shard of a blockId. Consecutive blocks fall
+   * to different shards.
+   */
+  private Shard shard(int blockId)
+  {
+    return shards[blockId % shards.length];
   }
 }
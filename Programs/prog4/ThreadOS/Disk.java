@@ -1,132 +1,798 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+public class Disk extends Thread implements BlockDevice {
+    // Bytes per block. The kernel sets it with setBlockSize( ) once, when
+    // ThreadOS boots and before any device, cache or file system is created.
+    public static int blockSize = 512;
+    private static boolean blockSizeSet;
+
+    // How the disk image is kept: all of it in memory, the disk file
+    // mapped into memory, or only the blocks in use in memory
+    public static final int ARRAY = 0;
+    public static final int MAPPED = 1;
+    public static final int SPARSE = 2;
+
+    // The order pending requests are served in: arrival order, C-LOOK, or
+    // C-LOOK with deadlines
+    public static final int FIFO = 0;
+    public static final int CLOOK = 1;
+    public static final int DEADLINE = 2;
 
-public class Disk extends Thread {
-    public static final int blockSize = 512;
     private final int trackSize = 10;
-    private final int transferTime = 20;
-    private final int delayPerTrack = 1;
+    private DiskModel model;           // how long each request takes
+    private final int queueSize = 32;  // max requests pending at once
     private int diskSize;
+    private String fileName;           // the backing file, "DISK" by default
+    private Volume volume;             // the volume this disk belongs to
 
     private byte data[];
 
+    // In mapped mode the DISK file itself is the disk image, and data[]
+    // is not used.
+    private MappedByteBuffer image;
+
+    // In sparse mode a block is read from the disk file the first time it
+    // is used, and only blocks that are not all zero are kept. A block
+    // that is in neither is zero, so the file only grows as far as the
+    // last block written and the zero regions in it stay holes.
+    private Hashtable<Integer, byte[]> pages;
+    private BitSet loaded;             // blocks whose page is up to date
+    private RandomAccessFile sparseFile;
+
+    // Blocks written since the last SYNC. Only these are written back.
+    private BitSet dirty;
+
+    // Copy-on-write snapshots, oldest first, kept in memory only. Each one
+    // saves the old contents of the blocks first written after it was
+    // taken and before the next one was, so the newest one saves every
+    // block written since it was taken.
+    private class Snapshot {
+	String name;
+	Hashtable<Integer, byte[]> saved = new Hashtable<Integer, byte[]>( );
+
+	Snapshot( String name ) {
+	    this.name = name;
+	}
+    }
+
+    private Vector<Snapshot> snapshots;
+    private boolean paused;            // no new request may start
+
     private int command;
     private final int IDLE = 0;
     private final int READ = 1;
     private final int WRITE = 2;
     private final int SYNC = 3;
-    private boolean readyBuffer;
+    private final int ANY = -1;        // cLook( ) may pick either command
 
     private byte[] buffer;
     private int currentBlockId;
     private int targetBlockId;
+    private int blockCount;            // consecutive blocks to transfer
+
+    // Adjacent requests are merged into one run that costs one seek. The
+    // run's first block and length are what the head moves over.
+    private int runBlockId;
+    private int runCount;
+
+    // Plugging: when fewer than unplugThreshold requests are queued, the
+    // disk waits up to plugTime ms for more before it starts, so that
+    // adjacent requests from several threads can be merged
+    private int plugTime;
+    private final int unplugThreshold = 4;
+
+    // Deadline policy: a request older than its expiry is served before
+    // the elevator order. Reads are preferred over writes, but writes are
+    // passed over at most writesStarved times in a row.
+    private int policy = CLOOK;
+    private final int readExpire = 50;     // ms
+    private final int writeExpire = 500;   // ms
+    private final int writesStarved = 2;
+    private int starved;               // picks that passed over writes
+
+    // A disk request waiting in the queue. Its ticket is handed back to
+    // the submitter and passed to the disk interrupt on completion, so the
+    // kernel can wake exactly the thread that is waiting for it.
+    private class Request {
+	int command;
+	int blockId;
+	int count;
+	byte[] buffer;
+	int ticket;
+	long submitted;                // ms
+	long deadline;
+
+	Request( int command, int blockId, int count, byte[] buffer ) {
+	    this.command = command;
+	    this.blockId = blockId;
+	    this.count = count;
+	    this.buffer = buffer;
+	    ticket = nextTicket++;
+	    submitted = System.currentTimeMillis( );
+	    deadline = submitted
+		+ ( ( command == READ ) ? readExpire : writeExpire );
+	}
+    }
+
+    private int nextTicket;            // ticket for the next request
+
+    private Vector<Request> queue;     // pending requests in arrival order
+    private Vector<Request> finished;  // served but not yet collected
+    private Vector<Request> batch;     // the requests being served
+
+    // statistics
+    private long seekDistance;         // total tracks traveled by the head
+    private long requestsServed;
+    private long mergedRequests;       // served as part of another's run
+    private long readLatency[];        // reads by ms from submission to end
+
+    // Returns false if bytes is not a multiple of 512, or if the block size
+    // was set already; blockSize is left as it was then
+    public static synchronized boolean setBlockSize( int bytes ) {
+	if ( blockSizeSet || bytes < 512 || bytes % 512 != 0 )
+	    return false;
+	blockSize = bytes;
+	blockSizeSet = true;
+	return true;
+    }
 
     public Disk( int totalBlocks ) {
+	this( totalBlocks, ARRAY, new HddDiskModel( ) );
+    }
+
+    public Disk( int totalBlocks, int mode, DiskModel model ) {
+	this( totalBlocks, mode, model, "DISK", null );
+    }
+
+    // A member of a volume reports each completion to the volume instead
+    // of raising a disk interrupt
+    public Disk( int totalBlocks, int mode, DiskModel model,
+		 String fileName, Volume volume ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
+	this.fileName = fileName;
+	this.volume = volume;
+	this.model = ( model != null ) ? model : new HddDiskModel( );
 	command = IDLE;
-	readyBuffer = false;
 	buffer = null;
 	currentBlockId = 0;
 	targetBlockId = 0;
+	queue = new Vector<Request>( );
+	finished = new Vector<Request>( );
+	batch = new Vector<Request>( );
+	snapshots = new Vector<Snapshot>( );
+	nextTicket = 0;
+	seekDistance = 0;
+	requestsServed = 0;
+	readLatency = new long[ 10000 ];
+	dirty = new BitSet( diskSize );
+	// a byte array or a mapping holds at most 2GB
+	if ( mode != SPARSE
+	     && ( long )diskSize * blockSize > Integer.MAX_VALUE ) {
+	    SysLib.cerr( "threadOS: " + fileName + " is too large, using "
+			 + "a sparse image\n" );
+	    mode = SPARSE;
+	}
+	if ( mode == SPARSE && openSparse( ) )
+	    return;
+	if ( mode == MAPPED && mapImage( ) )
+	    return;
+	data = new byte[ diskSize * blockSize ];
+	int readableSize = 0;
 	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
-	    int readableSize = ( ifstream.available( ) < data.length ) ?
+	    FileInputStream ifstream = new FileInputStream( fileName );
+	    readableSize = ( ifstream.available( ) < data.length ) ?
 		ifstream.available( ) : data.length; 
 	    ifstream.read( data, 0, readableSize );
 	    ifstream.close( );
 	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
 	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
+	// blocks missing from the DISK file must be written by the first SYNC
+	dirty.set( readableSize / blockSize, diskSize );
     }
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
-
-	if ( blockId < 0 || blockId > diskSize ) {
-	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+    // Maps the disk file, growing it to the disk size if needed
+    private boolean mapImage( ) {
+	try {
+	    if ( !new File( fileName ).exists( ) )
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    RandomAccessFile file = new RandomAccessFile( fileName, "rw" );
+	    image = file.getChannel( ).map( FileChannel.MapMode.READ_WRITE, 0,
+					   diskSize * blockSize );
+	    file.close( ); // the mapping stays valid
+	    return true;
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
 	    return false;
 	}
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
+    private boolean openSparse( ) {
+	try {
+	    if ( !new File( fileName ).exists( ) )
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    sparseFile = new RandomAccessFile( fileName, "rw" );
+	    pages = new Hashtable<Integer, byte[]>( );
+	    loaded = new BitSet( );
 	    return true;
-	} else
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
 	    return false;
+	}
+    }
+
+    // read, write and sync return the request's ticket, or -1 if the
+    // request was not accepted
+    public int read( int blockId, byte buffer[] ) {
+	return read( blockId, buffer, 1 );
+    }
+
+    // Reads count consecutive blocks starting at blockId with one seek
+    public synchronized int read( int blockId, byte buffer[], int count ) {
+
+	if ( !validRange( blockId, count ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    return -1;
+	}
+
+	return enqueue( READ, blockId, count, buffer );
+    }
+
+    public int write( int blockId, byte buffer[] ) {
+	return write( blockId, buffer, 1 );
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    // Writes count consecutive blocks starting at blockId with one seek
+    public synchronized int write( int blockId, byte buffer[], int count ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( !validRange( blockId, count ) ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-	    return false;
+	    return -1;
 	}
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
+	return enqueue( WRITE, blockId, count, buffer );
+    }
+
+    public synchronized int sync( ) {
+	return enqueue( SYNC, 0, 0, null );
+    }
+
+    public boolean validRange( int blockId, int count ) {
+	return blockId >= 0 && count > 0 && blockId + count <= diskSize;
+    }
+
+    // Accepts a request unless the queue is full
+    private int enqueue( int command, int blockId, int count, byte[] buffer ) {
+	if ( queue.size( ) >= queueSize )
+	    return -1;
+	Request request = new Request( command, blockId, count, buffer );
+	queue.add( request );
+	notifyAll( );
+	return request.ticket;
+    }
+
+    // Collects the completion of the given ticket, if it has finished
+    public synchronized boolean testAndResetReady( int ticket ) {
+	Request done = findFinished( ticket );
+	if ( done != null ) {
+	    finished.remove( done );
 	    return true;
 	} else
 	    return false;
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
-	    return true;
-	} else
+    public synchronized boolean testReady( int ticket ) {
+	return findFinished( ticket ) != null;
+    }
+
+    private Request findFinished( int ticket ) {
+	for ( int i = 0; i < finished.size( ); i++ ) {
+	    if ( finished.elementAt( i ).ticket == ticket )
+		return finished.elementAt( i );
+	}
+	return null;
+    }
+
+    public synchronized long getSeekDistance( ) {
+	return seekDistance;
+    }
+
+    public synchronized long getRequestsServed( ) {
+	return requestsServed;
+    }
+
+    // Blocks held in memory; in sparse mode only the nonzero ones in use
+    public synchronized long getResidentBlocks( ) {
+	return ( pages != null ) ? pages.size( )
+	    : ( image != null ) ? 0 : diskSize;
+    }
+
+    public synchronized long getMergedRequests( ) {
+	return mergedRequests;
+    }
+
+    public synchronized void setPlugTime( int milliseconds ) {
+	plugTime = Math.max( milliseconds, 0 );
+    }
+
+    public synchronized void setPolicy( int policy ) {
+	if ( policy >= FIFO && policy <= DEADLINE )
+	    this.policy = policy;
+    }
+
+    // The read latency in ms that the given percent of reads stayed within,
+    // counted from submission to completion. Latencies of 10 s or more
+    // are counted as 10 s.
+    public synchronized long getReadLatency( double percent ) {
+	long reads = 0;
+	for ( int i = 0; i < readLatency.length; i++ )
+	    reads += readLatency[i];
+	long seen = 0;
+	for ( int i = 0; i < readLatency.length; i++ ) {
+	    seen += readLatency[i];
+	    if ( seen > 0 && seen >= reads * percent / 100 )
+		return i;
+	}
+	return 0;
+    }
+
+    // Takes a snapshot called name of the disk as it is once the requests
+    // being served are done. Returns false if the name is taken.
+    public synchronized boolean snapshot( String name ) {
+	if ( findSnapshot( name ) >= 0 )
 	    return false;
+	pause( );
+	snapshots.add( new Snapshot( name ) );
+	unpause( );
+	return true;
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
+    // Restores the disk to the snapshot called name and drops the newer
+    // ones. The snapshot is kept, so it can be rolled back to again.
+    public synchronized boolean rollback( String name ) {
+	int s = findSnapshot( name );
+	if ( s < 0 )
 	    return false;
+	pause( );
+	// newest first, so that an older snapshot's contents win
+	for ( int i = snapshots.size( ) - 1; i >= s; i-- ) {
+	    Hashtable<Integer, byte[]> saved = snapshots.elementAt( i ).saved;
+	    Enumeration<Integer> e = saved.keys( );
+	    while ( e.hasMoreElements( ) ) {
+		int blockId = e.nextElement( );
+		putBlock( blockId, saved.get( blockId ) );
+	    }
+	    if ( i > s )
+		snapshots.remove( i );
+	    else
+		saved.clear( );
+	}
+	unpause( );
+	return true;
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    return true;
-	} else
+    // Drops the snapshot called name. The snapshot before it takes over
+    // the blocks it saved that it did not save itself.
+    public synchronized boolean discard( String name ) {
+	int s = findSnapshot( name );
+	if ( s < 0 )
 	    return false;
+	pause( );
+	Snapshot dropped = snapshots.remove( s );
+	if ( s > 0 ) {
+	    Hashtable<Integer, byte[]> older = snapshots.elementAt( s - 1 ).saved;
+	    Enumeration<Integer> e = dropped.saved.keys( );
+	    while ( e.hasMoreElements( ) ) {
+		int blockId = e.nextElement( );
+		if ( !older.containsKey( blockId ) )
+		    older.put( blockId, dropped.saved.get( blockId ) );
+	    }
+	}
+	unpause( );
+	return true;
+    }
+
+    private int findSnapshot( String name ) {
+	for ( int i = 0; i < snapshots.size( ); i++ ) {
+	    if ( snapshots.elementAt( i ).name.equals( name ) )
+		return i;
+	}
+	return -1;
+    }
+
+    // Waits until no request is being served and keeps new ones from
+    // starting, so a snapshot operation sees the disk at rest
+    private void pause( ) {
+	paused = true;
+	while ( !batch.isEmpty( ) ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	    paused = true;             // another operation may have ended it
+	}
+    }
+
+    private void unpause( ) {
+	paused = false;
+	notifyAll( );
+    }
+
+    // Blocks saved by snapshots
+    public synchronized long getSnapshotBlocks( ) {
+	long blocks = 0;
+	for ( int i = 0; i < snapshots.size( ); i++ )
+	    blocks += snapshots.elementAt( i ).saved.size( );
+	return blocks;
+    }
+
+    // Tracks the head has to travel to reach blockId, counted from where
+    // it is, or from where it is heading if a request is being served
+    public synchronized int getSeekTracks( int blockId ) {
+	int headBlockId = currentBlockId;
+	if ( !batch.isEmpty( ) && command != SYNC )
+	    headBlockId = runBlockId + Math.max( runCount, 1 ) - 1;
+	return Math.abs( blockId/trackSize - headBlockId/trackSize );
+    }
+
+    // Requests pending, including the ones being served
+    public synchronized int getQueueLength( ) {
+	return queue.size( ) + batch.size( );
     }
 
     private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+	while ( queue.isEmpty( ) || paused ) {
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
 	}
+	plug( );
+	Request first = nextRequest( );
+	command = first.command;
+	batch.add( first );
+	// SYNC keeps the head where it is
+	runBlockId = ( command == SYNC ) ? currentBlockId : first.blockId;
+	runCount = first.count;
+	if ( command != SYNC )
+	    merge( );
+    }
+
+    private void plug( ) {
+	long deadline = System.currentTimeMillis( ) + plugTime;
+	long left;
+	while ( queue.size( ) < unplugThreshold
+		&& ( left = deadline - System.currentTimeMillis( ) ) > 0 ) {
+	    try {
+		wait( left );
+	    } catch ( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+    }
+
+    // Adds queued requests of the same command that continue the run at
+    // either end, until none is left. Requests behind a SYNC stay queued,
+    // and so does a request that must not pass an older one.
+    private void merge( ) {
+	for ( int i = 0; i < queue.size( ); i++ ) {
+	    Request r = queue.elementAt( i );
+	    if ( r.command == SYNC )
+		return;
+	    if ( r.command != command || inOrder( r ) != r )
+		continue;
+	    if ( r.blockId == runBlockId + runCount )
+		batch.add( r );
+	    else if ( r.blockId + r.count == runBlockId ) {
+		batch.add( 0, r );
+		runBlockId = r.blockId;
+	    } else
+		continue;
+	    runCount += r.count;
+	    queue.remove( i );
+	    mergedRequests++;
+	    i = -1;                    // the run grew; look again
+	}
+    }
+
+    // Requests on the same block are served in the order they were queued,
+    // unless both are reads. Returns the oldest queued request that overlaps
+    // next, and so must be served before it, or next itself.
+    private Request inOrder( Request next ) {
+	for ( int i = 0; i < queue.size( ); i++ ) {
+	    Request older = queue.elementAt( i );
+	    if ( older == next )
+		break;
+	    if ( ( older.command == WRITE || next.command == WRITE )
+		 && older.blockId < next.blockId + next.count
+		 && next.blockId < older.blockId + older.count )
+		return inOrder( older );
+	}
+	return next;
+    }
+
+    // Picks and dequeues the next request by the policy. A SYNC acts as a
+    // barrier, so only requests submitted before the oldest SYNC are
+    // considered.
+    private Request nextRequest( ) {
+	int barrier = 0;
+	while ( barrier < queue.size( )
+		&& queue.elementAt( barrier ).command != SYNC )
+	    barrier++;
+	Request next;
+	if ( barrier == 0 || policy == FIFO )
+	    next = queue.firstElement( );
+	else if ( policy == DEADLINE )
+	    next = deadlineRequest( barrier );
+	else
+	    next = inOrder( cLook( barrier, ANY ) );
+	queue.remove( next );
+	return next;
+    }
+
+    // C-LOOK: pick the nearest request on or after the head's track, moving
+    // toward higher tracks only. When nothing is left ahead of the head,
+    // jump back to the lowest pending track. Requests on the same track are
+    // served in arrival order. Only the first barrier requests with the
+    // given command, or any command for ANY, are considered; returns null
+    // if there is none.
+    private Request cLook( int barrier, int command ) {
+	int headTrack = currentBlockId / trackSize;
+	Request ahead = null;
+	Request lowest = null;
+	for ( int i = 0; i < barrier; i++ ) {
+	    Request r = queue.elementAt( i );
+	    if ( command != ANY && r.command != command )
+		continue;
+	    int track = r.blockId / trackSize;
+	    if ( track >= headTrack
+		 && ( ahead == null || track < ahead.blockId / trackSize ) )
+		ahead = r;
+	    if ( lowest == null || track < lowest.blockId / trackSize )
+		lowest = r;
+	}
+	return ( ahead != null ) ? ahead : lowest;
+    }
+
+    // Deadline: the oldest expired read, else the oldest expired write,
+    // else reads in C-LOOK order while writes have not been starved too
+    // long, else writes in C-LOOK order
+    private Request deadlineRequest( int barrier ) {
+	long now = System.currentTimeMillis( );
+	Request oldestRead = null;
+	Request oldestWrite = null;
+	for ( int i = 0; i < barrier; i++ ) {
+	    Request r = queue.elementAt( i );
+	    if ( r.command == READ && oldestRead == null )
+		oldestRead = r;
+	    if ( r.command == WRITE && oldestWrite == null )
+		oldestWrite = r;
+	}
+	if ( oldestRead != null && oldestRead.deadline <= now )
+	    return passOver( oldestRead, oldestWrite );
+	if ( oldestWrite != null && oldestWrite.deadline <= now )
+	    return passOver( oldestWrite, oldestWrite );
+	if ( oldestRead != null
+	     && ( oldestWrite == null || starved < writesStarved ) )
+	    return passOver( cLook( barrier, READ ), oldestWrite );
+	return passOver( cLook( barrier, WRITE ), oldestWrite );
+    }
+
+    // Returns next, or the older request on its blocks it must not pass,
+    // and counts how often pending writes were passed over for a read
+    private Request passOver( Request next, Request oldestWrite ) {
+	next = inOrder( next );
+	if ( next.command == WRITE )
+	    starved = 0;
+	else if ( oldestWrite != null )
+	    starved++;
+	return next;
     }
 
     private void seek( ) {
-	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+	int lastBlockId = runBlockId + Math.max( runCount, 1 ) - 1;
+	int distance = Math.abs( runBlockId/trackSize
+				 - currentBlockId/trackSize )
+	    + ( lastBlockId/trackSize - runBlockId/trackSize );
+	int seekTime = model.accessTime( currentBlockId, runBlockId,
+					 runCount, trackSize );
 	try {
-	    Thread.sleep( seekTime );
+	    if ( seekTime > 0 )
+		Thread.sleep( seekTime );
 	} catch( InterruptedException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
-	currentBlockId = targetBlockId;
+	synchronized ( this ) {
+	    currentBlockId = lastBlockId;
+	    seekDistance += distance;
+	}
     }
 
-    private synchronized void finishCommand( ) {
+    // Returns the finished tickets. Must not hold the Disk lock when
+    // raising the interrupts, because the kernel checks completions while
+    // holding the ioQueue lock.
+    private synchronized int[] finishCommand( ) {
+	int tickets[] = new int[ batch.size( ) ];
+	for ( int i = 0; i < tickets.length; i++ )
+	    tickets[i] = batch.elementAt( i ).ticket;
+	long now = System.currentTimeMillis( );
+	for ( int i = 0; i < tickets.length; i++ ) {
+	    Request r = batch.elementAt( i );
+	    if ( r.command == READ )
+		readLatency[ ( int )Math.min( now - r.submitted,
+					      readLatency.length - 1 ) ]++;
+	}
 	command = IDLE;
-	readyBuffer = true;
-	SysLib.disk( ); // a disk interrupt
+	finished.addAll( batch );
+	requestsServed += batch.size( );
+	batch.clear( );
+	notifyAll( );                  // a snapshot operation may be waiting
+	return tickets;
+    }
+
+    // Saves the blocks about to be written in the newest snapshot, unless
+    // it already has them
+    private void preserve( int blockId, int count ) {
+	if ( snapshots.isEmpty( ) )
+	    return;
+	Snapshot newest = snapshots.lastElement( );
+	for ( int b = blockId; b < blockId + count; b++ ) {
+	    if ( !newest.saved.containsKey( b ) )
+		newest.saved.put( b, getBlock( b ) );
+	}
+    }
+
+    // A copy of the block as it is on the disk
+    private byte[] getBlock( int blockId ) {
+	byte block[] = new byte[ blockSize ];
+	if ( pages != null ) {
+	    try {
+		byte page[] = page( blockId );
+		if ( page != null )
+		    System.arraycopy( page, 0, block, 0, blockSize );
+	    } catch ( IOException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	} else if ( image != null )
+	    image.get( blockId * blockSize, block, 0, blockSize );
+	else
+	    System.arraycopy( data, blockId * blockSize, block, 0, blockSize );
+	return block;
+    }
+
+    private void putBlock( int blockId, byte block[] ) {
+	if ( pages != null ) {
+	    if ( isZero( block, 0 ) )
+		pages.remove( blockId );
+	    else
+		pages.put( blockId, block.clone( ) );
+	    loaded.set( blockId );
+	} else if ( image != null )
+	    image.put( blockId * blockSize, block, 0, blockSize );
+	else
+	    System.arraycopy( block, 0, data, blockId * blockSize, blockSize );
+	markDirty( blockId, 1 );
+    }
+
+    private void markDirty( int blockId, int count ) {
+	dirty.set( blockId, blockId + count );
+    }
+
+    // The page of a sparse block, or null if the block is zero
+    private byte[] page( int blockId ) throws IOException {
+	if ( !loaded.get( blockId ) ) {
+	    byte page[] = new byte[ blockSize ];
+	    ByteBuffer in = ByteBuffer.wrap( page );
+	    long offset = ( long )blockId * blockSize;
+	    while ( in.hasRemaining( ) ) {
+		// past the end of the file the rest of the block is zero
+		if ( sparseFile.getChannel( ).read( in, offset
+						    + in.position( ) ) < 0 )
+		    break;
+	    }
+	    if ( !isZero( page, 0 ) )
+		pages.put( blockId, page );
+	    loaded.set( blockId );
+	}
+	return pages.get( blockId );
+    }
+
+    private static boolean isZero( byte block[], int offset ) {
+	for ( int i = offset; i < offset + blockSize; i++ ) {
+	    if ( block[i] != 0 )
+		return false;
+	}
+	return true;
+    }
+
+    private void readSparse( ) throws IOException {
+	for ( int i = 0; i < blockCount; i++ ) {
+	    byte page[] = page( targetBlockId + i );
+	    if ( page != null )
+		System.arraycopy( page, 0, buffer, i * blockSize, blockSize );
+	    else
+		Arrays.fill( buffer, i * blockSize, ( i + 1 ) * blockSize,
+			     ( byte )0 );
+	}
+    }
+
+    private void writeSparse( ) {
+	for ( int i = 0; i < blockCount; i++ ) {
+	    int blockId = targetBlockId + i;
+	    int offset = i * blockSize;
+	    if ( isZero( buffer, offset ) )
+		pages.remove( blockId );
+	    else
+		pages.put( blockId, Arrays.copyOfRange( buffer, offset,
+							offset + blockSize ) );
+	    loaded.set( blockId );
+	}
+	markDirty( targetBlockId, blockCount );
+    }
+
+    // Writes back the dirty blocks. A zero block is only written if it
+    // lies inside the file already, to clear what was there.
+    private void syncSparse( ) throws IOException {
+	FileChannel file = sparseFile.getChannel( );
+	byte zero[] = new byte[ blockSize ];
+	for ( int b = dirty.nextSetBit( 0 ); b >= 0 && b < diskSize;
+	      b = dirty.nextSetBit( b + 1 ) ) {
+	    long offset = ( long )b * blockSize;
+	    byte page[] = pages.get( b );
+	    if ( page == null && offset >= file.size( ) )
+		continue;
+	    ByteBuffer out = ByteBuffer.wrap( ( page != null ) ? page : zero );
+	    while ( out.hasRemaining( ) )
+		file.write( out, offset + out.position( ) );
+	}
+	dirty.clear( );
+    }
+
+    // Writes back the blocks changed since the last SYNC, one positional
+    // write (or one force of the mapping) per run of adjacent dirty blocks
+    private void syncDirty( ) {
+	if ( dirty.isEmpty( ) )
+	    return;
+	try {
+	    if ( pages != null ) {
+		syncSparse( );
+		return;
+	    }
+	    RandomAccessFile file = null;
+	    try {
+		if ( image == null )
+		    file = new RandomAccessFile( fileName, "rw" );
+		int start = dirty.nextSetBit( 0 );
+		while ( start >= 0 && start < diskSize ) {
+		    int end = dirty.nextClearBit( start );
+		    int offset = start * blockSize;
+		    int length = ( end - start ) * blockSize;
+		    if ( image != null )
+			image.force( offset, length );
+		    else {
+			// the buffer's position is also the file position
+			ByteBuffer run = ByteBuffer.wrap( data, offset,
+							   length );
+			while ( run.hasRemaining( ) )
+			    file.getChannel( ).write( run, run.position( ) );
+		    }
+		    start = dirty.nextSetBit( end );
+		}
+	    } finally {
+		if ( file != null )     // also when a write failed
+		    file.close( );
+	    }
+	    dirty.clear( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
     }
 
     public void run ( ) {
@@ -135,31 +801,63 @@ public class Disk extends Thread {
 	    waitCommand( );
 	    seek( );
 	    // System.out.println( "Disk: command = " + command );
-	    switch( command ) {
-	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
-		break;
-	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
-		break;
-	    case SYNC:
+	    for ( int i = 0; i < batch.size( ); i++ )
+		transfer( batch.elementAt( i ) );
+	    int tickets[] = finishCommand( );
+	    for ( int i = 0; i < tickets.length; i++ ) {
+		if ( volume != null )
+		    volume.completed( this, tickets[i] );
+		else
+		    SysLib.disk( tickets[i] ); // a disk interrupt
+	    }
+	}
+    }
+
+    // Moves the data of one request of the run
+    private void transfer( Request request ) {
+	buffer = request.buffer;
+	targetBlockId = request.blockId;
+	blockCount = request.count;
+	switch( command ) {
+	case READ:
+	    if ( pages != null ) {
 		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
+		    readSparse( );
 		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
+		    SysLib.cerr( e.toString( ) + "\n" );
 		}
-		// SysLib.cerr( "threadOS: DISK synchronized\n" );
 		break;
 	    }
-	    finishCommand( );
+	    if ( image != null ) {
+		image.get( targetBlockId * blockSize, buffer, 0,
+			   blockCount * blockSize );
+		break;
+	    }
+	    System.arraycopy( data, targetBlockId * blockSize, 
+			      buffer, 0, 
+			      blockCount * blockSize );
+	    break;
+	case WRITE:
+	    preserve( targetBlockId, blockCount );
+	    if ( pages != null ) {
+		writeSparse( );
+		break;
+	    }
+	    if ( image != null ) {
+		image.put( targetBlockId * blockSize, buffer, 0,
+			   blockCount * blockSize );
+		markDirty( targetBlockId, blockCount );
+		break;
+	    }
+	    System.arraycopy( buffer, 0, 
+			      data, targetBlockId * blockSize, 
+			      blockCount * blockSize );
+	    markDirty( targetBlockId, blockCount );
+	    break;
+	case SYNC:
+	    syncDirty( );
+	    // SysLib.cerr( "threadOS: DISK synchronized\n" );
+	    break;
 	}
     }
 }
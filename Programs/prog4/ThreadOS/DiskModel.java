@@ -0,0 +1,8 @@
+// Timing model of the simulated disk. Disk asks its model how long a
+// request takes and sleeps for that long before transferring the data.
+public interface DiskModel {
+    // Milliseconds needed to move the head from the track of headBlockId
+    // to the track of blockId and then transfer count consecutive blocks.
+    // A track holds trackSize blocks.
+    int accessTime( int headBlockId, int blockId, int count, int trackSize );
+}
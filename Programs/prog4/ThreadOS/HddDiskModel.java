@@ -0,0 +1,18 @@
+// The original ThreadOS disk timing: a fixed transfer time per request
+// plus a delay for every track the head moves across.
+public class HddDiskModel implements DiskModel {
+    private final int transferTime = 20;
+    private final int delayPerTrack = 1;
+
+    // A run of blocks pays one seek. After its first block the rest of
+    // the run streams under the head, at transferTime per track, plus
+    // delayPerTrack for every track boundary the run crosses.
+    public int accessTime( int headBlockId, int blockId, int count,
+			   int trackSize ) {
+	int lastBlockId = blockId + Math.max( count, 1 ) - 1;
+	int distance = Math.abs( blockId/trackSize - headBlockId/trackSize )
+	    + ( lastBlockId/trackSize - blockId/trackSize );
+	return transferTime + delayPerTrack * distance
+	    + ( lastBlockId - blockId ) * transferTime / trackSize;
+    }
+}
@@ -0,0 +1,117 @@
+// A submission ring and a completion ring shared by a user thread and the
+// kernel. The thread queues operations with prepare( ) and reaps their
+// results with reap( ), neither of which enters the kernel; one
+// SysLib.ringEnter( ) call submits everything queued so far. Operations
+// use the system call numbers of Kernel as opcodes and name one of the
+// buffers registered with the ring, so no arguments are marshalled per
+// call. Disk operations complete in any order; the others complete in
+// submission order, before ringEnter( ) returns.
+public class IoRing {
+    // A queued operation, and later its completion
+    public class Entry {
+	int op;
+	int param;                          // a block number
+	int buffer;                         // index of a registered buffer
+	long userData;                      // handed back with the result
+	int result;
+
+	public long getUserData( ) {
+	    return userData;
+	}
+
+	public int getResult( ) {
+	    return result;
+	}
+
+	IoRing ring( ) {
+	    return IoRing.this;
+	}
+    }
+
+    private Entry sq[];                     // submissions
+    private int sqHead;                     // the next one the kernel takes
+    private int sqCount;
+    private Entry cq[];                     // completions
+    private int cqHead;                     // the next one the thread reaps
+    private int cqCount;
+    private byte buffers[][];
+
+    // Kernel side: operations submitted but not completed, and how many
+    // completions the thread in ringEnter( ) waits for, or 0
+    private int inFlight;
+    private int wanted;
+
+    // A completion ring twice as large as the submission ring leaves room
+    // for everything submitted while earlier completions are not reaped
+    public IoRing( int entries, byte buffers[][] ) {
+	sq = new Entry[ Math.max( entries, 1 ) ];
+	cq = new Entry[ 2 * sq.length ];
+	this.buffers = buffers;
+    }
+
+    // Queues an operation. Returns false if the submission ring is full.
+    public synchronized boolean prepare( int op, int param, int buffer,
+					 long userData ) {
+	if ( sqCount == sq.length )
+	    return false;
+	Entry entry = new Entry( );
+	entry.op = op;
+	entry.param = param;
+	entry.buffer = buffer;
+	entry.userData = userData;
+	sq[( sqHead + sqCount++ ) % sq.length] = entry;
+	return true;
+    }
+
+    // The next completion, or null if there is none
+    public synchronized Entry reap( ) {
+	if ( cqCount == 0 )
+	    return null;
+	Entry entry = cq[cqHead];
+	cq[cqHead] = null;
+	cqHead = ( cqHead + 1 ) % cq.length;
+	cqCount--;
+	return entry;
+    }
+
+    public synchronized int getCompletions( ) {
+	return cqCount;
+    }
+
+    // The next submission, or null if none is queued or its completion
+    // might not fit in the completion ring
+    synchronized Entry nextSubmission( ) {
+	if ( sqCount == 0 || inFlight + cqCount >= cq.length )
+	    return null;
+	Entry entry = sq[sqHead];
+	sq[sqHead] = null;
+	sqHead = ( sqHead + 1 ) % sq.length;
+	sqCount--;
+	inFlight++;
+	return entry;
+    }
+
+    synchronized int getInFlight( ) {
+	return inFlight;
+    }
+
+    synchronized int getWanted( ) {
+	return wanted;
+    }
+
+    synchronized void setWanted( int wanted ) {
+	this.wanted = wanted;
+    }
+
+    synchronized void complete( Entry entry, int result ) {
+	entry.result = result;
+	cq[( cqHead + cqCount++ ) % cq.length] = entry;
+	inFlight--;
+    }
+
+    // The registered buffer, or null if there is no such buffer
+    byte[] buffer( int index ) {
+	return ( buffers != null && index >= 0 && index < buffers.length )
+	    ? buffers[index] : null;
+    }
+}
@@ -0,0 +1,205 @@
+import java.util.*;
+
+// Decides in which order the disk requests of user threads reach the block
+// device. Every thread has an I/O class, set with SysLib.ionice( ).
+// Realtime requests go first. Best-effort requests share the device
+// round-robin between threads: a thread at level l dispatches up to
+// LEVELS - l requests before the next thread's turn, so one heavy writer
+// cannot starve an interactive reader. Idle requests go only when the
+// device has nothing else to do. At most depth requests are in the
+// device at once; the rest wait here, where they can still be reordered.
+// The kernel calls every method under the ioQueue lock.
+public class IoScheduler {
+    public static final int REALTIME = 1;
+    public static final int BEST_EFFORT = 2;
+    public static final int IDLE = 3;
+    public static final int LEVELS = 8;     // 0 (highest) .. 7 (lowest)
+
+    // A disk request of a user thread
+    public class Request {
+	int id;                             // handed to the thread
+	int tid;
+	int command;                        // the kernel's system call
+	int blockId;
+	byte buffer[];
+	int ticket;                         // the device's, once dispatched
+	boolean done;
+	boolean async;                      // no thread sleeps on it
+	long submitted;                     // ms
+
+	Request( int tid, int command, int blockId, byte buffer[] ) {
+	    id = nextId;
+	    nextId = ( nextId == Integer.MAX_VALUE ) ? 0 : nextId + 1;
+	    this.tid = tid;
+	    this.command = command;
+	    this.blockId = blockId;
+	    this.buffer = buffer;
+	    ticket = -1;
+	    submitted = System.currentTimeMillis( );
+	}
+    }
+
+    // The requests of one thread, and its statistics
+    private class Flow {
+	int tid;
+	int ioClass = BEST_EFFORT;
+	int level = 4;
+	Vector<Request> queue = new Vector<Request>( );
+	int served;                         // dispatched in the current turn
+	int inFlight;
+	boolean exited;                     // dropped once nothing is left
+
+	long requests;
+	long totalLatency;                  // ms from submission to completion
+	long maxLatency;
+	int maxDepth;                       // queued and in flight
+
+	Flow( int tid ) {
+	    this.tid = tid;
+	}
+
+	int quantum( ) {
+	    return ( ioClass == IDLE ) ? 1 : LEVELS - level;
+	}
+    }
+
+    private int nextId;
+    private int depth;                      // max requests in the device
+    private int inFlight;
+    private Hashtable<Integer, Flow> flows;
+    private Hashtable<Integer, Request> dispatched; // device ticket->request
+
+    // Per class, the threads with queued requests, in turn order
+    private Vector<Flow> rings[];
+
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    public IoScheduler( int depth ) {
+	this.depth = ( depth > 0 ) ? depth : 1;
+	flows = new Hashtable<Integer, Flow>( );
+	dispatched = new Hashtable<Integer, Request>( );
+	rings = new Vector[ IDLE + 1 ];
+	for ( int c = REALTIME; c <= IDLE; c++ )
+	    rings[c] = new Vector<Flow>( );
+    }
+
+    private Flow flow( int tid ) {
+	Flow flow = flows.get( tid );
+	if ( flow == null ) {
+	    flow = new Flow( tid );
+	    flows.put( tid, flow );
+	}
+	flow.exited = false;                // the tid was reused
+	return flow;
+    }
+
+    // Returns false if ioClass or level is out of range
+    public boolean setClass( int tid, int ioClass, int level ) {
+	if ( ioClass < REALTIME || ioClass > IDLE
+	     || level < 0 || level >= LEVELS )
+	    return false;
+	Flow flow = flow( tid );
+	if ( rings[flow.ioClass].remove( flow ) )
+	    rings[ioClass].add( flow );
+	flow.ioClass = ioClass;
+	flow.level = level;
+	flow.served = 0;
+	return true;
+    }
+
+    public Request submit( int tid, int command, int blockId,
+			   byte buffer[] ) {
+	Request request = new Request( tid, command, blockId, buffer );
+	Flow flow = flow( tid );
+	if ( flow.queue.isEmpty( ) )
+	    rings[flow.ioClass].add( flow );
+	flow.queue.add( request );
+	flow.maxDepth = Math.max( flow.maxDepth,
+				  flow.queue.size( ) + flow.inFlight );
+	return request;
+    }
+
+    // The request to dispatch next, or null if none may go now. It stays
+    // queued until dispatched( ) is called for it, so a request the device
+    // refuses is simply offered again later.
+    public Request next( ) {
+	if ( inFlight >= depth )
+	    return null;
+	for ( int c = REALTIME; c <= IDLE; c++ ) {
+	    if ( rings[c].isEmpty( ) )
+		continue;
+	    if ( c == IDLE && inFlight > 0 )
+		return null;
+	    return rings[c].firstElement( ).queue.firstElement( );
+	}
+	return null;
+    }
+
+    // The device accepted the request returned by next( )
+    public void dispatched( Request request, int ticket ) {
+	Flow flow = flows.get( request.tid );
+	Vector<Flow> ring = rings[flow.ioClass];
+	flow.queue.remove( request );
+	request.ticket = ticket;
+	dispatched.put( ticket, request );
+	flow.inFlight++;
+	inFlight++;
+	// the thread's turn ends when its quantum is used up or it has
+	// nothing more queued
+	if ( flow.queue.isEmpty( ) ) {
+	    ring.remove( flow );
+	    flow.served = 0;
+	} else if ( ++flow.served >= flow.quantum( ) ) {
+	    ring.remove( flow );
+	    ring.add( flow );
+	    flow.served = 0;
+	}
+    }
+
+    // Returns the request with the device ticket, or null if it is not
+    // one of ours
+    public Request completed( int ticket ) {
+	Request request = dispatched.remove( ticket );
+	if ( request == null )
+	    return null;
+	request.done = true;
+	inFlight--;
+	Flow flow = flows.get( request.tid );
+	long latency = System.currentTimeMillis( ) - request.submitted;
+	flow.inFlight--;
+	flow.requests++;
+	flow.totalLatency += latency;
+	flow.maxLatency = Math.max( flow.maxLatency, latency );
+	if ( flow.exited && flow.queue.isEmpty( ) && flow.inFlight == 0 )
+	    flows.remove( request.tid );
+	return request;
+    }
+
+    // The thread's requests queued here or in the device
+    public int getPending( int tid ) {
+	Flow flow = flows.get( tid );
+	return ( flow != null ) ? flow.queue.size( ) + flow.inFlight : 0;
+    }
+
+    // A line of the thread's I/O statistics, or null if it did no I/O
+    public String getStats( int tid ) {
+	Flow flow = flows.get( tid );
+	if ( flow == null || flow.requests == 0 )
+	    return null;
+	return "tid=" + tid + " class=" + flow.ioClass + " level="
+	    + flow.level + " requests=" + flow.requests + " avgLatency="
+	    + ( flow.totalLatency / flow.requests ) + "ms maxLatency="
+	    + flow.maxLatency + "ms maxDepth=" + flow.maxDepth;
+    }
+
+    // The thread has exited; its tid may be reused. A flow with requests
+    // still queued or in flight is dropped when the last one completes.
+    public void forget( int tid ) {
+	Flow flow = flows.get( tid );
+	if ( flow == null )
+	    return;
+	if ( flow.queue.isEmpty( ) && flow.inFlight == 0 )
+	    flows.remove( tid );
+	else
+	    flow.exited = true;
+    }
+}
@@ -36,6 +36,34 @@ public class Kernel
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // Vectored disk I/O: b.length / Disk.blockSize consecutive blocks
+   public final static int RAWREADV  = 20; // SysLib.rawreadv(int blk, byte b[])
+   public final static int RAWWRITEV = 21; // SysLib.rawwritev(int blk, byte b[])
+
+   // Disk I/O priority: SysLib.ionice(int ioClass, int level)
+   public final static int IONICE    = 22;
+
+   // Asynchronous disk I/O: b.length / Disk.blockSize consecutive blocks.
+   // AREAD and AWRITE return a request id at once; IOWAIT and IOPOLL
+   // collect the completions.
+   public final static int AREAD     = 23; // SysLib.aread(int blk, byte b[])
+   public final static int AWRITE    = 24; // SysLib.awrite(int blk, byte b[])
+   public final static int IOWAIT    = 25; // SysLib.iowait(int id)
+   public final static int IOPOLL    = 26; // SysLib.iopoll( )
+
+   // Batched system calls through a submission and a completion ring
+   public final static int RING_SETUP = 27; // SysLib.ringSetup(IoRing ring)
+   public final static int RING_ENTER = 28; // SysLib.ringEnter(int min)
+
+   // Copy-on-write snapshots of the disk, by name
+   public final static int SNAPSHOT  = 29; // SysLib.snapshot(String name)
+   public final static int ROLLBACK  = 30; // SysLib.rollback(String name)
+   public final static int DISCARD   = 31; // SysLib.discard(String name)
+
+   // Cache hits, misses, misses kept out by admission, dirty victims and
+   // blocks written back in the background since boot
+   public final static int CSTATS    = 32; // SysLib.cstats(long stats[])
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -47,15 +75,24 @@ public class Kernel
 
    // System thread references
    private static Scheduler scheduler;
-   private static Disk disk;
+   private static BlockDevice disk;
    private static Cache cache;
 
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
-   private static SyncQueue ioQueue;    // I/O queue
+   private static SyncQueue ioQueue;    // I/O queue, one condition per tid
 
-   private final static int COND_DISK_REQ = 1; // wait condition
-   private final static int COND_DISK_FIN = 2; // wait condition
+   // Orders the disk requests of threads sleeping in ioQueue
+   private static IoScheduler ioScheduler;
+   private static boolean ioStats;     // report each thread's I/O on exit
+   private static Readahead readahead;
+
+   // Asynchronous requests not yet collected, by id
+   private static Hashtable<Integer, IoScheduler.Request> ioRequests;
+   private static final int maxAsync = 64; // per thread, queued or in flight
+
+   // Ring operations in the disk, by request id
+   private static Hashtable<Integer, IoRing.Entry> ringRequests;
 
    // Standard input
    private static BufferedReader input
@@ -68,20 +105,64 @@ public class Kernel
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) {
                case BOOT:
+                  // "blocksize=<bytes>" sets the size of a block, a
+                  // multiple of 512 (512 by default), before the device or
+                  // the cache sizes anything by it
+                  String options[] = ( String[] )args;
+                  int blockSize = intOption( options, "blocksize", 512 );
+                  if ( !Disk.setBlockSize( blockSize ) )
+                     System.out.println( "threadOS: a wrong blocksize "
+                                         + blockSize );
+
                   // instantiate and start a scheduler
                   scheduler = new Scheduler( );
                   scheduler.start( );
 
                   // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  disk = blockDevice( options );
                   disk.start( );
 
-                  // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  // "rebuild=<member>" restores a replaced RAID-5 member
+                  int replaced = intOption( options, "rebuild", -1 );
+                  if ( replaced >= 0 && disk instanceof ParityVolume )
+                     ( ( ParityVolume )disk ).rebuild( replaced );
+
+                  // instantiate a cache memory of "cache=<blocks>" blocks
+                  // (10 by default), split into "cacheshards=<n>"
+                  // independently locked shards (1 by default), that
+                  // replace blocks with "cachepolicy=sca" (the default),
+                  // "cachepolicy=arc" or "cachepolicy=2q";
+                  // "cacheadmission=tinylfu" lets a missed block in only
+                  // if it is used more often than the block it replaces
+                  cache = new Cache( Disk.blockSize,
+                                     Math.max( intOption( options, "cache",
+                                                          10 ), 1 ),
+                                     intOption( options, "cacheshards", 1 ),
+                                     bootOption( options, "cachepolicy",
+                                                 "sca" ),
+                                     bootOption( options, "cacheadmission",
+                                                 "off" ).equals( "tinylfu" ) );
 
                   // instantiate synchronized queues
-                  ioQueue = new SyncQueue( );
+                  // the last condition is for callers that have no TCB
+                  ioQueue = new SyncQueue( scheduler.getMaxThreads( ) + 1 );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
+                  ioScheduler
+                     = new IoScheduler( intOption( options, "iodepth", 8 ) );
+                  ioStats = bootOption( options, "iostats", "off" )
+                     .equals( "on" );
+                  readahead
+                     = new Readahead( intOption( options, "readahead", 32 ),
+                                      disk );
+                  ioRequests = new Hashtable<Integer, IoScheduler.Request>( );
+                  ringRequests = new Hashtable<Integer, IoRing.Entry>( );
+
+                  // "cacheflusher=on" writes dirty blocks back in the
+                  // background, once they are old or too many;
+                  // started last, as its rawwrite needs the queues above
+                  if ( bootOption( options, "cacheflusher", "off" )
+                       .equals( "on" ) )
+                     cache.startFlusher( );
                   return OK;
                case EXEC:
                   return sysExec( ( String[] )args );
@@ -97,6 +178,20 @@ public class Kernel
                      int myPid = myTcb.getPid( ); // get my parent ID
                      int myTid = myTcb.getTid( ); // get my ID
                      if ( myPid != -1 ) {
+                        synchronized ( ioQueue ) {
+                           String stats = ioScheduler.getStats( myTid );
+                           if ( ioStats && stats != null )
+                              System.err.println( "threadOS: I/O " + stats );
+                           ioScheduler.forget( myTid );
+                           readahead.forget( myTid );
+                           // uncollected requests are dropped
+                           Iterator<IoScheduler.Request> i
+                              = ioRequests.values( ).iterator( );
+                           while ( i.hasNext( ) ) {
+                              if ( i.next( ).tid == myTid )
+                                 i.remove( );
+                           }
+                        }
                         // wake up a thread waiting on my parent ID
                         waitQueue.dequeueAndWakeup( myPid, myTid );
                         // I'm terminated!
@@ -109,23 +204,52 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  if ( !validDiskArgs( cmd, param, args ) )
+                     return ERROR;
+                  if ( cmd == RAWREAD )
+                     return diskRead( param, ( byte[] )args );
+                  return diskRequest( cmd, param, ( byte[] )args );
                case SYNC:     // synchronize disk data to a real file
-                  while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  return diskRequest( cmd, param, ( byte[] )args );
+               case RAWREADV:  // read consecutive blocks in one request
+               case RAWWRITEV: // write consecutive blocks in one request
+                  if ( !validDiskArgs( cmd, param, args ) )
+                     return ERROR;
+                  return diskRequest( cmd, param, ( byte[] )args );
+               case AREAD:  // start reading consecutive blocks
+               case AWRITE: // start writing consecutive blocks
+                  if ( !validDiskArgs( RAWREADV, param, args ) )
+                     return ERROR;
+                  return diskStart( ( cmd == AREAD ) ? RAWREADV : RAWWRITEV,
+                                    param, ( byte[] )args );
+               case IOWAIT:  // wait for the request id param
+                  return diskWaitId( param );
+               case IOPOLL:  // collect any completed request
+                  return diskPoll( );
+               case RING_SETUP: // args = the ring, or null to drop it
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) == null
+                       || ( args != null && !( args instanceof IoRing ) ) )
+                     return ERROR;
+                  myTcb.setRing( ( IoRing )args );
                   return OK;
+               case RING_ENTER: // param = completions to wait for
+                  return ringEnter( param );
+               case SNAPSHOT: // args = the snapshot's name
+               case ROLLBACK:
+               case DISCARD:
+                  if ( !( disk instanceof Disk )
+                       || !( args instanceof String ) )
+                     return ERROR;
+                  return diskSnapshot( cmd, ( String )args );
+               case IONICE:  // param = I/O class, args = level
+                  if ( !( args instanceof Integer ) )
+                     return ERROR;
+                  synchronized ( ioQueue ) {
+                     return ioScheduler.setClass( myTid( ), param,
+                                                  ( Integer )args )
+                        ? OK : ERROR;
+                  }
                case READ:
                   switch ( param ) {
                      case STDIN:
@@ -176,6 +300,15 @@ public class Kernel
                case CFLUSH:  // to be implemented in assignment 4
                   cache.flush( );
                   return OK;
+               case CSTATS:  // args = hits, misses[, ...], filled in
+                  if ( !( args instanceof long[] )
+                       || ( ( long[] )args ).length < 2 )
+                     return ERROR;
+                  long stats[] = cache.getStats( );
+                  System.arraycopy( stats, 0, args, 0,
+                                    Math.min( stats.length,
+                                              ( ( long[] )args ).length ) );
+                  return OK;
                case OPEN:    // to be implemented in project
                   return OK;
                case CLOSE:   // to be implemented in project
@@ -191,11 +324,41 @@ public class Kernel
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
+            synchronized ( ioQueue ) {
+               // wake up the thread waiting for this ticket's completion
+               IoScheduler.Request request = ioScheduler.completed( param );
+               if ( request != null ) {
+                  disk.testAndResetReady( param );
+                  if ( request.command == RAWWRITE
+                       || request.command == RAWWRITEV )
+                     readahead.invalidate( request.blockId,
+                                           blockCount( request.command,
+                                                       request.buffer ) );
+                  if ( !request.async )
+                     ioQueue.dequeueAndWakeup( request.tid );
+                  // post a ring operation's completion
+                  IoRing.Entry entry = ringRequests.remove( request.id );
+                  if ( entry != null ) {
+                     IoRing ring = entry.ring( );
+                     ring.complete( entry, OK );
+                     // as in ringEnter, nothing left in flight also ends
+                     // the wait, however few completions there are
+                     if ( ring.getWanted( ) > 0
+                          && ( ring.getCompletions( ) >= ring.getWanted( )
+                               || ring.getInFlight( ) == 0 ) ) {
+                        ring.setWanted( 0 );
+                        ioQueue.dequeueAndWakeup( request.tid );
+                     }
+                  }
+                  // wake up the threads waiting for this prefetch
+                  Vector<Integer> waiters = readahead.completed( request );
+                  while ( waiters != null && !waiters.isEmpty( ) )
+                     ioQueue.dequeueAndWakeup( waiters.remove( 0 ) );
+               }
 
-            // wake up the thread waiting for a request acceptance
-            ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+               // the device has room again
+               diskDispatch( );
+            }
 
             return OK;
          case INTERRUPT_IO:   // other I/O interrupts (not implemented)
@@ -204,6 +367,365 @@ public class Kernel
       return OK;
    }
 
+   // The caller's tid, or the extra ioQueue condition if it has no TCB
+   private static int myTid( ) {
+      TCB myTcb = scheduler.getMyTcb( );
+      return ( myTcb != null ) ? myTcb.getTid( ) : scheduler.getMaxThreads( );
+   }
+
+   // Submitting a disk request and waiting for its completion. Each thread
+   // sleeps on its own tid condition. The request waits in ioScheduler
+   // until its turn comes and the device accepts it; the disk interrupt
+   // for its ticket marks it done and wakes this thread.
+   private static int diskRequest( int cmd, int blockId, byte[] buffer ) {
+      int myTid = myTid( );
+      IoScheduler.Request request;
+      synchronized ( ioQueue ) {
+         request = diskSubmit( myTid, cmd, blockId, buffer );
+      }
+      return diskWait( myTid, request );
+   }
+
+   // Queues a request in ioScheduler and dispatches what may go. Called
+   // under the ioQueue lock.
+   private static IoScheduler.Request diskSubmit( int myTid, int cmd,
+                                                  int blockId,
+                                                  byte[] buffer ) {
+      if ( cmd == RAWWRITE || cmd == RAWWRITEV )
+         readahead.written( myTid, blockId, blockCount( cmd, buffer ) );
+      IoScheduler.Request request
+         = ioScheduler.submit( myTid, cmd, blockId, buffer );
+      diskDispatch( );
+      return request;
+   }
+
+   // Starting a request without waiting for it. Returns its id, or ERROR
+   // if the thread already has maxAsync requests pending.
+   private static int diskStart( int cmd, int blockId, byte[] buffer ) {
+      int myTid = myTid( );
+      synchronized ( ioQueue ) {
+         if ( ioScheduler.getPending( myTid ) >= maxAsync )
+            return ERROR;
+         // the completion cannot be handled before the ioQueue lock is
+         // released, so the request is marked in time
+         IoScheduler.Request request
+            = diskSubmit( myTid, cmd, blockId, buffer );
+         request.async = true;
+         ioRequests.put( request.id, request );
+         return request.id;
+      }
+   }
+
+   // Waiting for one of the thread's asynchronous requests and collecting
+   // it. The request stops being asynchronous, so that its completion
+   // wakes the thread up.
+   private static int diskWaitId( int id ) {
+      int myTid = myTid( );
+      IoScheduler.Request request;
+      synchronized ( ioQueue ) {
+         request = ioRequests.get( id );
+         if ( request == null || request.tid != myTid )
+            return ERROR;
+         ioRequests.remove( id );
+         request.async = false;
+      }
+      return diskWait( myTid, request );
+   }
+
+   // Collects a completed asynchronous request of the thread. Returns its
+   // id, or ERROR if none has completed.
+   private static int diskPoll( ) {
+      int myTid = myTid( );
+      synchronized ( ioQueue ) {
+         Enumeration<IoScheduler.Request> e = ioRequests.elements( );
+         while ( e.hasMoreElements( ) ) {
+            IoScheduler.Request request = e.nextElement( );
+            if ( request.tid == myTid && request.done ) {
+               ioRequests.remove( request.id );
+               return request.id;
+            }
+         }
+      }
+      return ERROR;
+   }
+
+   // Reading one block. Readahead may already hold it; otherwise it is
+   // read from the disk. Either way, the read may start prefetching the
+   // blocks after it, which is submitted behind the read itself.
+   private static int diskRead( int blockId, byte[] buffer ) {
+      int myTid = myTid( );
+      IoScheduler.Request request = null;
+      Readahead.Prefetch hit;
+      synchronized ( ioQueue ) {
+         hit = readahead.lookup( blockId );
+         if ( hit == null )
+            request = ioScheduler.submit( myTid, RAWREAD, blockId, buffer );
+         Readahead.Prefetch next = readahead.advance( myTid, blockId );
+         if ( next != null ) {
+            next.request = ioScheduler.submit( myTid, RAWREADV, next.blockId,
+                                               next.buffer );
+            next.request.async = true;
+            readahead.add( next );
+         }
+         diskDispatch( );
+      }
+      if ( request != null )
+         return diskWait( myTid, request );
+      while ( true ) {
+         synchronized ( ioQueue ) {
+            if ( hit.request.done ) {
+               if ( readahead.copy( hit, blockId, buffer ) )
+                  return OK;
+               break; // written since it was prefetched
+            }
+            hit.waiters.add( myTid );
+         }
+         ioQueue.enqueueAndSleep( myTid );
+      }
+      return diskRequest( RAWREAD, blockId, buffer );
+   }
+
+   private static int diskWait( int myTid, IoScheduler.Request request ) {
+      while ( true ) {
+         synchronized ( ioQueue ) {
+            if ( request.done )
+               return OK;
+         }
+         ioQueue.enqueueAndSleep( myTid );
+      }
+   }
+
+   // Hands requests to the device while ioScheduler lets them go and the
+   // device accepts them. Called under the ioQueue lock.
+   private static void diskDispatch( ) {
+      IoScheduler.Request next;
+      while ( ( next = ioScheduler.next( ) ) != null ) {
+         int ticket = deviceSubmit( next.command, next.blockId,
+                                    next.buffer );
+         if ( ticket < 0 )
+            return; // the device is full; retried on the next interrupt
+         ioScheduler.dispatched( next, ticket );
+      }
+   }
+
+   // Submitting the operations queued in the caller's ring, then waiting
+   // until minComplete completions are there to reap, or nothing more is
+   // in flight. Returns the number of operations submitted.
+   private static int ringEnter( int minComplete ) {
+      TCB myTcb = scheduler.getMyTcb( );
+      IoRing ring = ( myTcb != null ) ? myTcb.getRing( ) : null;
+      if ( ring == null )
+         return ERROR;
+      int myTid = myTcb.getTid( );
+      int submitted = 0;
+      IoRing.Entry entry;
+      while ( ( entry = ring.nextSubmission( ) ) != null ) {
+         ringSubmit( myTid, entry, ring.buffer( entry.buffer ) );
+         submitted++;
+      }
+      while ( true ) {
+         synchronized ( ioQueue ) {
+            if ( ring.getCompletions( ) >= minComplete
+                 || ring.getInFlight( ) == 0 ) {
+               ring.setWanted( 0 );
+               return submitted;
+            }
+            ring.setWanted( minComplete );
+         }
+         ioQueue.enqueueAndSleep( myTid );
+      }
+   }
+
+   // Disk reads and writes go to ioScheduler without waiting and complete
+   // on their disk interrupt. Cache operations and SYNC are carried out
+   // at once. The file system calls are not implemented by this kernel.
+   private static void ringSubmit( int myTid, IoRing.Entry entry,
+                                   byte[] buffer ) {
+      switch ( entry.op ) {
+         case RAWREAD:
+         case RAWWRITE:
+         case RAWREADV:
+         case RAWWRITEV:
+            if ( !validDiskArgs( entry.op, entry.param, buffer ) )
+               break;
+            synchronized ( ioQueue ) {
+               IoScheduler.Request request
+                  = diskSubmit( myTid, entry.op, entry.param, buffer );
+               request.async = true;
+               ringRequests.put( request.id, entry );
+            }
+            return;
+         case CREAD:
+         case CWRITE:
+         case SYNC:
+         case CSYNC:
+         case CFLUSH:
+            if ( ( entry.op == CREAD || entry.op == CWRITE )
+                 && ( buffer == null || buffer.length < Disk.blockSize ) )
+               break;
+            entry.ring( ).complete( entry, interrupt( INTERRUPT_SOFTWARE,
+                                                      entry.op, entry.param,
+                                                      buffer ) );
+            return;
+      }
+      entry.ring( ).complete( entry, ERROR );
+   }
+
+   // A disk read or write needs a buffer of whole blocks, one block at
+   // least for RAWREAD and RAWWRITE, within the device
+   private static boolean validDiskArgs( int cmd, int blockId, Object args ) {
+      if ( !( args instanceof byte[] ) )
+         return false;
+      byte[] buffer = ( byte[] )args;
+      if ( cmd == RAWREAD || cmd == RAWWRITE )
+         return buffer.length >= Disk.blockSize
+            && disk.validRange( blockId, 1 );
+      return buffer.length % Disk.blockSize == 0
+         && disk.validRange( blockId, buffer.length / Disk.blockSize );
+   }
+
+   // Snapshots are kept by Disk; the other devices have none. A rollback
+   // changes blocks under readahead, so its prefetched blocks are dropped.
+   private static int diskSnapshot( int cmd, String name ) {
+      Disk single = ( Disk )disk;
+      if ( cmd == SNAPSHOT )
+         return single.snapshot( name ) ? OK : ERROR;
+      if ( cmd == DISCARD )
+         return single.discard( name ) ? OK : ERROR;
+      if ( !single.rollback( name ) )
+         return ERROR;
+      synchronized ( ioQueue ) {
+         readahead.invalidate( 0, Integer.MAX_VALUE );
+      }
+      return OK;
+   }
+
+   // Blocks a read or write request covers
+   private static int blockCount( int cmd, byte[] buffer ) {
+      return ( cmd == RAWREAD || cmd == RAWWRITE ) ? 1
+         : buffer.length / Disk.blockSize;
+   }
+
+   // Returns the disk ticket, or -1 if the disk queue is full
+   private static int deviceSubmit( int cmd, int blockId, byte[] buffer ) {
+      switch ( cmd ) {
+         case RAWREAD:
+            return disk.read( blockId, buffer, 1 );
+         case RAWWRITE:
+            return disk.write( blockId, buffer, 1 );
+         case RAWREADV:
+            return disk.read( blockId, buffer, buffer.length / Disk.blockSize );
+         case RAWWRITEV:
+            return disk.write( blockId, buffer,
+                               buffer.length / Disk.blockSize );
+         default:
+            return disk.sync( );
+      }
+   }
+
+   // Boot options are passed to Boot as name=value pairs. Returns the
+   // value given for name, or defaultValue if there is none.
+   private static String bootOption( String options[], String name,
+                                     String defaultValue ) {
+      if ( options != null ) {
+         for ( int i = 0; i < options.length; i++ ) {
+            if ( options[i].startsWith( name + "=" ) )
+               return options[i].substring( name.length( ) + 1 );
+         }
+      }
+      return defaultValue;
+   }
+
+   // The block device is picked with "device=disk" (the default),
+   // "device=ssd" together with "channels=<flash channels>",
+   // "device=raid0" together with "disks=<members>" and "stripe=<blocks per
+   // stripe unit>", "device=raid1" together with "disks=<replicas>",
+   // "device=raid5" together with "disks=<members>" and "stripe=<blocks per
+   // stripe unit>", or "device=tiered" together with "fast=<blocks in the
+   // fast tier>" (a tenth of the device by default). "blocks=<n>" sets
+   // the size of the device (1000 blocks by default). For disks,
+   // "disk=mmap" maps the DISK file instead of loading it into memory, and
+   // "disk=sparse" keeps only the blocks in use, so that very large disks
+   // cost only what they hold.
+   // "plug=<ms>" lets a disk wait that long for adjacent requests to merge
+   // with before it starts on a short queue (0, no waiting, by default).
+   // "iosched=clook" (the default), "iosched=fifo", or "iosched=deadline"
+   // picks the order a disk serves its queue in; deadline serves a read
+   // waiting over 50 ms, or a write waiting over 500 ms, first.
+   // "iodepth=<n>" caps the requests the kernel keeps in the device at
+   // once (8 by default); the others wait in the kernel, ordered by each
+   // thread's I/O class. "iostats=on" reports each thread's I/O on exit.
+   // "readahead=<blocks>" is the largest window prefetched ahead of a
+   // thread reading blocks in order (32 by default, 0 turns it off).
+   private static BlockDevice blockDevice( String options[] ) {
+      String device = bootOption( options, "device", "disk" );
+      int blocks = intOption( options, "blocks", 1000 );
+      String image = bootOption( options, "disk", "array" );
+      int mode = image.equals( "mmap" ) ? Disk.MAPPED
+         : image.equals( "sparse" ) ? Disk.SPARSE : Disk.ARRAY;
+      if ( device.equals( "ssd" ) )
+         return new Ssd( blocks, intOption( options, "channels", 4 ) );
+      Volume volume = null;
+      if ( device.equals( "raid0" ) )
+         volume = new StripedVolume( blocks, intOption( options, "disks", 4 ),
+                                     intOption( options, "stripe", 4 ),
+                                     mode, diskModel( options ) );
+      if ( device.equals( "raid1" ) )
+         volume = new MirroredVolume( blocks,
+                                      intOption( options, "disks", 2 ),
+                                      mode, diskModel( options ) );
+      if ( device.equals( "raid5" ) )
+         volume = new ParityVolume( blocks, intOption( options, "disks", 4 ),
+                                    intOption( options, "stripe", 4 ),
+                                    mode, diskModel( options ) );
+      if ( device.equals( "tiered" ) )
+         volume = new TieredVolume( blocks,
+                                    intOption( options, "fast", blocks / 10 ),
+                                    mode, diskModel( options ) );
+      int plugTime = intOption( options, "plug", 0 );
+      String order = bootOption( options, "iosched", "clook" );
+      int policy = order.equals( "fifo" ) ? Disk.FIFO
+         : order.equals( "deadline" ) ? Disk.DEADLINE : Disk.CLOOK;
+      if ( volume != null ) {
+         volume.setPlugTime( plugTime );
+         volume.setPolicy( policy );
+         return volume;
+      }
+      Disk single = new Disk( blocks, mode, diskModel( options ) );
+      single.setPlugTime( plugTime );
+      single.setPolicy( policy );
+      return single;
+   }
+
+   private static int intOption( String options[], String name,
+                                 int defaultValue ) {
+      try {
+         return Integer.parseInt( bootOption( options, name,
+                                              "" + defaultValue ) );
+      } catch ( NumberFormatException e ) {
+         System.out.println( e );
+         return defaultValue;
+      }
+   }
+
+   // The disk timing model is picked with "model=hdd" (the default),
+   // "model=zero" for no simulated latency, or "model=rotational" together
+   // with "rpm=<revolutions per minute>" and "trackdelay=<ms per track>"
+   private static DiskModel diskModel( String options[] ) {
+      String model = bootOption( options, "model", "hdd" );
+      try {
+         if ( model.equals( "zero" ) )
+            return new ZeroDiskModel( );
+         if ( model.equals( "rotational" ) )
+            return new RotationalDiskModel(
+               Integer.parseInt( bootOption( options, "rpm", "7200" ) ),
+               Double.parseDouble( bootOption( options, "trackdelay", "1" ) ) );
+      } catch ( NumberFormatException e ) {
+         System.out.println( e );
+      }
+      return new HddDiskModel( );
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
@@ -0,0 +1,38 @@
+// RAID-1: every member holds a full copy of the volume. Writes go to all
+// replicas. Each read goes to the replica with the fewest pending
+// requests; among equally busy replicas, to the one whose head is
+// closest to the block's track.
+public class MirroredVolume extends Volume {
+    private long reads[];                   // per replica: reads served
+
+    public MirroredVolume( int totalBlocks, int disks, int mode,
+			   DiskModel model ) {
+	super( totalBlocks, disks, totalBlocks, mode, model );
+	reads = new long[ member.length ];
+    }
+
+    protected void read( Request request, int blockId, byte buffer[],
+			 int count ) {
+	int best = 0;
+	for ( int d = 1; d < member.length; d++ ) {
+	    int queued = member[d].getQueueLength( );
+	    int bestQueued = member[best].getQueueLength( );
+	    if ( queued < bestQueued
+		 || ( queued == bestQueued && member[d].getSeekTracks( blockId )
+		      < member[best].getSeekTracks( blockId ) ) )
+		best = d;
+	}
+	reads[best]++;
+	submit( new Part( request, best, READ, blockId, buffer, count ) );
+    }
+
+    protected void write( Request request, int blockId, byte buffer[],
+			  int count ) {
+	for ( int d = 0; d < member.length; d++ )
+	    submit( new Part( request, d, WRITE, blockId, buffer, count ) );
+    }
+
+    public synchronized long getReads( int replica ) {
+	return reads[replica];
+    }
+}
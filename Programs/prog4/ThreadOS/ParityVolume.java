@@ -0,0 +1,400 @@
+import java.util.*;
+
+// RAID-5: each row of the volume holds n - 1 data units and one parity
+// unit of stripeUnit blocks, one unit per member. The parity unit is the
+// XOR of the row's data units. It moves one member to the left from row
+// to row, so that parity writes are spread over all members.
+//
+// A write that covers a whole row computes its parity from the new data
+// alone. A partial write needs the rest of the row. If the row is in the
+// stripe cache, its parity is recomputed in memory; otherwise the row's
+// other data units are read first (a read-modify-write) and the row is
+// cached. Writes to a row whose read is still in flight wait for it, and
+// so do reads, so that they are served after the writes ahead of them.
+public class ParityVolume extends Volume {
+    private final int cacheRows = 64;       // rows kept in the stripe cache
+    private final int rebuildChunk = 64;    // member blocks per rebuild step
+    private int stripeUnit;
+    private int rowBlocks;                  // data blocks per row
+    private int rows;
+
+    // A cached row: its data units followed by its parity unit
+    private LinkedHashMap<Integer, byte[]> stripeCache;
+
+    // Rows being read for a read-modify-write, with the writes and reads
+    // waiting for them
+    private Hashtable<Integer, Vector<RowWrite>> busyRows;
+
+    // Member writes of the request being split, merged per member before
+    // they are submitted; null when writes go out one by one
+    private Vector<Part> batch;
+
+    // statistics
+    private long fullStripeWrites;
+    private long cachedWrites;              // partial, row was cached
+    private long readModifyWrites;          // partial, row had to be read
+
+    // The part of a write request that falls in one row
+    private class RowWrite {
+	Request request;
+	int row;
+	int first;                          // first data block within the row
+	int count;
+	byte data[];
+
+	RowWrite( Request request, int row, int first, int count,
+		  byte data[] ) {
+	    this.request = request;
+	    this.row = row;
+	    this.first = first;
+	    this.count = count;
+	    this.data = data;
+	}
+
+	// Goes ahead once the row has been read
+	void resume( ) {
+	    writeRow( this );
+	}
+    }
+
+    // The part of a read request that falls in a row being read. Its data
+    // is the caller's buffer, which it fills from offset on.
+    private class WaitingRead extends RowWrite {
+	int blockId;
+	int offset;
+
+	WaitingRead( Request request, int blockId, int count, byte buffer[],
+		     int offset ) {
+	    super( request, blockId / rowBlocks, blockId % rowBlocks, count,
+		   buffer );
+	    this.blockId = blockId;
+	    this.offset = offset;
+	}
+
+	void resume( ) {
+	    readRuns( request, blockId, data, offset, count );
+	}
+    }
+
+    public ParityVolume( int totalBlocks, int disks, int stripeUnit,
+			 int mode, DiskModel model ) {
+	super( totalBlocks, Math.max( disks, 3 ),
+	       memberBlocks( totalBlocks, Math.max( disks, 3 ), stripeUnit ),
+	       mode, model );
+	this.stripeUnit = ( stripeUnit > 0 ) ? stripeUnit : 1;
+	rowBlocks = ( member.length - 1 ) * this.stripeUnit;
+	rows = ( volumeSize + rowBlocks - 1 ) / rowBlocks;
+	stripeCache = new LinkedHashMap<Integer, byte[]>( 16, 0.75f, true ) {
+		protected boolean removeEldestEntry(
+		    Map.Entry<Integer, byte[]> eldest ) {
+		    return size( ) > cacheRows;
+		}
+	    };
+	busyRows = new Hashtable<Integer, Vector<RowWrite>>( );
+    }
+
+    private static int memberBlocks( int totalBlocks, int disks,
+				     int stripeUnit ) {
+	int unit = ( stripeUnit > 0 ) ? stripeUnit : 1;
+	int rowSize = unit * ( disks - 1 );
+	return ( totalBlocks + rowSize - 1 ) / rowSize * unit;
+    }
+
+    private int parityDisk( int row ) {
+	return member.length - 1 - row % member.length;
+    }
+
+    // The member holding data unit k of a row
+    private int dataDisk( int row, int k ) {
+	return ( k < parityDisk( row ) ) ? k : k + 1;
+    }
+
+    private int diskOf( int blockId ) {
+	return dataDisk( blockId / rowBlocks,
+			 blockId % rowBlocks / stripeUnit );
+    }
+
+    private int memberBlockOf( int blockId ) {
+	return blockId / rowBlocks * stripeUnit + blockId % stripeUnit;
+    }
+
+    protected void read( Request request, int blockId, byte buffer[],
+			 int count ) {
+	readRuns( request, blockId, buffer, 0, count );
+    }
+
+    // Reads each run of blocks that is consecutive on one member with one
+    // part, into buffer from offset on. Only a request that is a single
+    // run uses the caller's buffer. The blocks of a row whose read is in
+    // flight wait for it, after the writes already waiting there.
+    private void readRuns( Request request, int blockId, byte buffer[],
+			   int offset, int count ) {
+	for ( int i = blockId; i < blockId + count; ) {
+	    Vector<RowWrite> waiting = busyRows.get( i / rowBlocks );
+	    if ( waiting != null ) {
+		int n = Math.min( rowBlocks - i % rowBlocks,
+				  blockId + count - i );
+		request.parts++;            // keeps the request open
+		waiting.add( new WaitingRead( request, i, n, buffer, offset
+					      + ( i - blockId )
+					      * Disk.blockSize ) );
+		i += n;
+		continue;
+	    }
+	    int disk = diskOf( i );
+	    int start = memberBlockOf( i );
+	    int run = 1;
+	    while ( i + run < blockId + count && diskOf( i + run ) == disk
+		    && memberBlockOf( i + run ) == start + run
+		    && !busyRows.containsKey( ( i + run ) / rowBlocks ) )
+		run++;
+	    if ( offset == 0 && run == count )
+		submit( new Part( request, disk, READ, start, buffer, count ) );
+	    else
+		submit( new CopyPart( request, disk, start,
+				      new byte[ run * Disk.blockSize ], run,
+				      buffer, offset
+				      + ( i - blockId ) * Disk.blockSize ) );
+	    i += run;
+	}
+    }
+
+    // Consecutive rows are consecutive on every member, so a write that
+    // spans several rows sends each member a single part
+    protected void write( Request request, int blockId, byte buffer[],
+			  int count ) {
+	batch = new Vector<Part>( );
+	for ( int i = blockId; i < blockId + count; ) {
+	    int row = i / rowBlocks;
+	    int first = i % rowBlocks;
+	    int n = Math.min( rowBlocks - first, blockId + count - i );
+	    byte data[] = new byte[ n * Disk.blockSize ];
+	    System.arraycopy( buffer, ( i - blockId ) * Disk.blockSize, data,
+			      0, data.length );
+	    writeRow( new RowWrite( request, row, first, n, data ) );
+	    i += n;
+	}
+	Vector<Part> parts = batch;
+	batch = null;
+	for ( int i = 0; i < parts.size( ); i++ )
+	    submit( parts.elementAt( i ) );
+    }
+
+    private void writeRow( RowWrite w ) {
+	Vector<RowWrite> waiting = busyRows.get( w.row );
+	if ( waiting != null ) {
+	    w.request.parts++;              // keeps the request open
+	    waiting.add( w );
+	    return;
+	}
+	byte stripe[] = stripeCache.get( w.row );
+	if ( w.count == rowBlocks ) {
+	    fullStripeWrites++;
+	    if ( stripe == null ) {
+		stripe = new byte[ ( rowBlocks + stripeUnit )
+				   * Disk.blockSize ];
+		stripeCache.put( w.row, stripe );
+	    }
+	} else if ( stripe != null )
+	    cachedWrites++;
+	else {
+	    readModifyWrites++;
+	    readRow( w );
+	    return;
+	}
+	System.arraycopy( w.data, 0, stripe, w.first * Disk.blockSize,
+			  w.data.length );
+	updateParity( stripe, w );
+	submitWrites( w, stripe );
+    }
+
+    // Reads the data units of the row that w does not overwrite in full
+    private void readRow( RowWrite w ) {
+	busyRows.put( w.row, new Vector<RowWrite>( ) );
+	RowRead rowRead = new RowRead( w );
+	for ( int k = 0; k < member.length - 1; k++ ) {
+	    if ( w.first <= k * stripeUnit
+		 && w.first + w.count >= ( k + 1 ) * stripeUnit )
+		continue;
+	    rowRead.units++;
+	    submit( new UnitRead( rowRead, k ) );
+	}
+    }
+
+    private class RowRead {
+	RowWrite write;
+	byte stripe[];
+	int units;                          // unit reads not yet done
+
+	RowRead( RowWrite write ) {
+	    this.write = write;
+	    stripe = new byte[ ( rowBlocks + stripeUnit ) * Disk.blockSize ];
+	}
+    }
+
+    private class UnitRead extends Part {
+	RowRead rowRead;
+	int unit;
+
+	UnitRead( RowRead rowRead, int unit ) {
+	    super( rowRead.write.request, dataDisk( rowRead.write.row, unit ),
+		   READ, rowRead.write.row * stripeUnit,
+		   new byte[ stripeUnit * Disk.blockSize ], stripeUnit );
+	    this.rowRead = rowRead;
+	    this.unit = unit;
+	}
+
+	void done( ) {
+	    System.arraycopy( buffer, 0, rowRead.stripe,
+			      unit * stripeUnit * Disk.blockSize,
+			      buffer.length );
+	    if ( --rowRead.units == 0 )
+		finishRowRead( rowRead );
+	}
+    }
+
+    // The row is complete: write it, cache it, and let the writes and
+    // reads that waited for it go ahead in the order they came
+    private void finishRowRead( RowRead rowRead ) {
+	RowWrite w = rowRead.write;
+	byte stripe[] = rowRead.stripe;
+	System.arraycopy( w.data, 0, stripe, w.first * Disk.blockSize,
+			  w.data.length );
+	for ( int c = 0; c < stripeUnit; c++ )
+	    computeParity( stripe, c );
+	stripeCache.put( w.row, stripe );
+	submitWrites( w, stripe );
+	Vector<RowWrite> waiting = busyRows.remove( w.row );
+	for ( int i = 0; i < waiting.size( ); i++ ) {
+	    RowWrite next = waiting.elementAt( i );
+	    next.resume( );
+	    next.request.parts--;
+	}
+    }
+
+    // Recomputes the parity blocks in the columns w touched
+    private void updateParity( byte stripe[], RowWrite w ) {
+	if ( w.count >= stripeUnit ) {
+	    for ( int c = 0; c < stripeUnit; c++ )
+		computeParity( stripe, c );
+	} else {
+	    for ( int i = w.first; i < w.first + w.count; i++ )
+		computeParity( stripe, i % stripeUnit );
+	}
+    }
+
+    // Parity block c is the XOR of block c of every data unit
+    private void computeParity( byte stripe[], int c ) {
+	int parity = ( rowBlocks + c ) * Disk.blockSize;
+	Arrays.fill( stripe, parity, parity + Disk.blockSize, ( byte )0 );
+	for ( int k = 0; k < member.length - 1; k++ ) {
+	    int data = ( k * stripeUnit + c ) * Disk.blockSize;
+	    for ( int j = 0; j < Disk.blockSize; j++ )
+		stripe[parity + j] ^= stripe[data + j];
+	}
+    }
+
+    // Writes the blocks w changed, one part per data unit, and the parity
+    // blocks of the columns it touched
+    private void submitWrites( RowWrite w, byte stripe[] ) {
+	int base = w.row * stripeUnit;
+	int last = w.first + w.count;
+	for ( int k = 0; k < member.length - 1; k++ ) {
+	    int start = Math.max( w.first, k * stripeUnit );
+	    int end = Math.min( last, ( k + 1 ) * stripeUnit );
+	    if ( start < end )
+		submitCopy( w.request, dataDisk( w.row, k ),
+			    base + start - k * stripeUnit, stripe, start,
+			    end - start );
+	}
+	int low = 0;
+	int high = stripeUnit - 1;
+	if ( w.count < stripeUnit ) {
+	    low = w.first % stripeUnit;
+	    high = ( last - 1 ) % stripeUnit;
+	    if ( high < low ) {             // wrapped into the next unit
+		low = 0;
+		high = stripeUnit - 1;
+	    }
+	}
+	submitCopy( w.request, parityDisk( w.row ), base + low, stripe,
+		    rowBlocks + low, high - low + 1 );
+    }
+
+    // Writes count blocks of the stripe, starting at stripe block from, to
+    // member block blockId
+    private void submitCopy( Request request, int disk, int blockId,
+			     byte stripe[], int from, int count ) {
+	byte data[] = Arrays.copyOfRange( stripe, from * Disk.blockSize,
+					  ( from + count ) * Disk.blockSize );
+	if ( batch == null ) {
+	    submit( new Part( request, disk, WRITE, blockId, data, count ) );
+	    return;
+	}
+	for ( int i = 0; i < batch.size( ); i++ ) {
+	    Part part = batch.elementAt( i );
+	    if ( part.disk == disk && part.blockId + part.count == blockId ) {
+		byte merged[] = Arrays.copyOf( part.buffer, part.buffer.length
+					       + data.length );
+		System.arraycopy( data, 0, merged, part.buffer.length,
+				  data.length );
+		part.buffer = merged;
+		part.count += count;
+		return;
+	    }
+	}
+	batch.add( new Part( request, disk, WRITE, blockId, data, count ) );
+    }
+
+    // Restores a replaced member from the others: every block of it is
+    // the XOR of the same block on all other members, whether it holds
+    // data or parity. Call it before the volume serves any request.
+    public synchronized void rebuild( int disk ) {
+	if ( disk < 0 || disk >= member.length )
+	    return;
+	int memberBlocks = rows * stripeUnit;
+	for ( int start = 0; start < memberBlocks; start += rebuildChunk ) {
+	    int count = Math.min( rebuildChunk, memberBlocks - start );
+	    byte image[] = new byte[ count * Disk.blockSize ];
+	    Request request = beginInternal( );
+	    for ( int d = 0; d < member.length; d++ ) {
+		if ( d != disk )
+		    submit( new XorPart( request, d, start, count, image ) );
+	    }
+	    await( request );
+	    request = beginInternal( );
+	    submit( new Part( request, disk, WRITE, start, image, count ) );
+	    await( request );
+	}
+	SysLib.cerr( "threadOS: DISK." + disk + " rebuilt\n" );
+    }
+
+    // A rebuild read that is XORed into the image of the lost member
+    private class XorPart extends Part {
+	byte image[];
+
+	XorPart( Request request, int disk, int blockId, int count,
+		 byte image[] ) {
+	    super( request, disk, READ, blockId,
+		   new byte[ count * Disk.blockSize ], count );
+	    this.image = image;
+	}
+
+	void done( ) {
+	    for ( int j = 0; j < image.length; j++ )
+		image[j] ^= buffer[j];
+	}
+    }
+
+    public synchronized long getFullStripeWrites( ) {
+	return fullStripeWrites;
+    }
+
+    public synchronized long getCachedWrites( ) {
+	return cachedWrites;
+    }
+
+    public synchronized long getReadModifyWrites( ) {
+	return readModifyWrites;
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.*;
+
+// Sequential readahead for single-block reads. Each thread's reads are
+// followed as a stream. Once a thread reads the block right after its
+// previous one, the next blocks are prefetched with one vectored read, so
+// a later read finds its block here instead of paying a seek. The window
+// starts at minWindow blocks and doubles, up to maxWindow, while the
+// stream stays sequential; a read elsewhere, or a write into the window,
+// collapses it. The kernel calls every method under the ioQueue lock.
+public class Readahead {
+    private final int minWindow = 4;
+    private int maxWindow;
+    private int capacity;                   // blocks kept at most
+    private BlockDevice disk;               // prefetches stay within it
+
+    // One vectored read of consecutive blocks
+    public class Prefetch {
+	int blockId;
+	int count;
+	byte buffer[];
+	IoScheduler.Request request;        // set once submitted
+	BitSet stale = new BitSet( );       // written since it was issued
+	Vector<Integer> waiters = new Vector<Integer>( );
+
+	Prefetch( int blockId, int count ) {
+	    this.blockId = blockId;
+	    this.count = count;
+	    buffer = new byte[ count * Disk.blockSize ];
+	}
+
+	boolean holds( int block ) {
+	    return block >= blockId && block < blockId + count
+		&& !stale.get( block - blockId );
+	}
+    }
+
+    // A thread's read stream
+    private class Stream {
+	int next = -1;                      // the block a sequential read reads
+	int window;                         // 0 while not sequential
+	int end;                            // the first block not prefetched
+    }
+
+    private Hashtable<Integer, Stream> streams;
+    private Vector<Prefetch> prefetches;    // oldest first
+    private int held;                       // blocks in prefetches
+
+    // statistics
+    private long prefetched;                // blocks
+    private long hits;
+
+    public Readahead( int maxWindow, BlockDevice disk ) {
+	this.maxWindow = Math.max( maxWindow, 0 );
+	this.disk = disk;
+	capacity = 4 * this.maxWindow;
+	streams = new Hashtable<Integer, Stream>( );
+	prefetches = new Vector<Prefetch>( );
+    }
+
+    // The prefetch that holds the block, or null
+    public Prefetch lookup( int blockId ) {
+	for ( int i = prefetches.size( ) - 1; i >= 0; i-- ) {
+	    if ( prefetches.elementAt( i ).holds( blockId ) )
+		return prefetches.elementAt( i );
+	}
+	return null;
+    }
+
+    // Follows the thread's read of blockId. Returns the blocks to prefetch
+    // next, or null if none.
+    public Prefetch advance( int tid, int blockId ) {
+	Stream stream = streams.get( tid );
+	if ( stream == null ) {
+	    stream = new Stream( );
+	    streams.put( tid, stream );
+	}
+	if ( blockId != stream.next ) {
+	    stream.window = 0;
+	    stream.end = blockId + 1;
+	} else if ( stream.window == 0 )
+	    stream.window = Math.min( minWindow, maxWindow );
+	else
+	    stream.window = Math.min( 2 * stream.window, maxWindow );
+	stream.next = blockId + 1;
+	stream.end = Math.max( stream.end, blockId + 1 );
+
+	// prefetch once less than half of the window is left ahead
+	if ( stream.window == 0
+	     || stream.end - stream.next > stream.window / 2 )
+	    return null;
+	int count = stream.next + stream.window - stream.end;
+	while ( count > 0 && !disk.validRange( stream.end, count ) )
+	    count--;
+	if ( count == 0 )
+	    return null;
+	Prefetch prefetch = new Prefetch( stream.end, count );
+	stream.end += count;
+	return prefetch;
+    }
+
+    // The prefetch has been submitted; keeps it, dropping the oldest
+    // finished ones beyond capacity
+    public void add( Prefetch prefetch ) {
+	prefetches.add( prefetch );
+	held += prefetch.count;
+	prefetched += prefetch.count;
+	for ( int i = 0; held > capacity && i < prefetches.size( ); ) {
+	    Prefetch p = prefetches.elementAt( i );
+	    if ( p.request.done ) {
+		prefetches.remove( i );
+		held -= p.count;
+	    } else
+		i++;
+	}
+    }
+
+    // The threads waiting for the prefetch of the finished request, or
+    // null if it is not a prefetch
+    public Vector<Integer> completed( IoScheduler.Request request ) {
+	for ( int i = 0; i < prefetches.size( ); i++ ) {
+	    if ( prefetches.elementAt( i ).request == request )
+		return prefetches.elementAt( i ).waiters;
+	}
+	return null;
+    }
+
+    // Copies a finished prefetch's block. Returns false if the block was
+    // written in the meantime and must be read from the disk.
+    public boolean copy( Prefetch prefetch, int blockId, byte buffer[] ) {
+	if ( !prefetch.holds( blockId ) )
+	    return false;
+	System.arraycopy( prefetch.buffer,
+			  ( blockId - prefetch.blockId ) * Disk.blockSize,
+			  buffer, 0, Disk.blockSize );
+	hits++;
+	return true;
+    }
+
+    // Blocks blockId .. blockId + count - 1 are being written by tid. A
+    // prefetch issued after the write was submitted may still be served
+    // first, so the kernel calls invalidate( ) again when it completes.
+    public void written( int tid, int blockId, int count ) {
+	invalidate( blockId, count );
+	Stream stream = streams.get( tid );
+	if ( stream != null && blockId <= stream.end
+	     && blockId + count > stream.next - 1 ) {
+	    stream.window = 0;
+	    stream.next = -1;               // not a read-only stream
+	}
+    }
+
+    public void invalidate( int blockId, int count ) {
+	for ( int i = 0; i < prefetches.size( ); i++ ) {
+	    Prefetch p = prefetches.elementAt( i );
+	    int from = Math.max( blockId, p.blockId );
+	    int to = Math.min( blockId + count, p.blockId + p.count );
+	    if ( from < to )
+		p.stale.set( from - p.blockId, to - p.blockId );
+	}
+    }
+
+    public void forget( int tid ) {
+	streams.remove( tid );
+    }
+
+    public long getPrefetched( ) {
+	return prefetched;
+    }
+
+    public long getHits( ) {
+	return hits;
+    }
+}
@@ -0,0 +1,23 @@
+// A disk described by its rotational speed and its per-track seek delay.
+// Each request waits half a revolution on average for its first block,
+// and one revolution passes a whole track under the head, so transfer
+// time is proportional to the number of blocks.
+public class RotationalDiskModel implements DiskModel {
+    private double revolutionTime;     // milliseconds per revolution
+    private double delayPerTrack;      // milliseconds per track moved
+
+    public RotationalDiskModel( int rpm, double delayPerTrack ) {
+	revolutionTime = 60000.0 / ( ( rpm > 0 ) ? rpm : 7200 );
+	this.delayPerTrack = ( delayPerTrack >= 0 ) ? delayPerTrack : 0;
+    }
+
+    public int accessTime( int headBlockId, int blockId, int count,
+			   int trackSize ) {
+	int lastBlockId = blockId + Math.max( count, 1 ) - 1;
+	int distance = Math.abs( blockId/trackSize - headBlockId/trackSize )
+	    + ( lastBlockId/trackSize - blockId/trackSize );
+	double time = delayPerTrack * distance + revolutionTime / 2
+	    + revolutionTime * Math.max( count, 1 ) / trackSize;
+	return ( int )Math.round( time );
+    }
+}
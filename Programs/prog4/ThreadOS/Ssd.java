@@ -0,0 +1,538 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+// A flash block device with the same request interface as Disk. Its
+// pages are spread over several channels, and each channel serves its
+// own queue in parallel with the others. A page-mapped flash translation
+// layer (FTL) writes every update out of place to a fresh page. Garbage
+// collection then reclaims erase blocks whose pages have been
+// overwritten. It runs in the background when a channel is idle and
+// short of free blocks, and in the foreground when a write finds no
+// free block.
+public class Ssd implements BlockDevice {
+    private final int pagesPerBlock = 16;   // flash pages per erase block
+    private final int readTime = 50;        // microseconds per page read
+    private final int programTime = 200;    // microseconds per page write
+    private final int eraseTime = 1500;     // microseconds per block erase
+    private final int queueSize = 32;       // max requests pending at once
+    private final int spareBlocks = 2;      // per channel, for GC headroom
+    private final int overProvision = 25;   // % of extra pages
+    private int diskSize;                   // logical blocks
+    private int blockSize;
+
+    private final int READ = 1;
+    private final int WRITE = 2;
+    private final int SYNC = 3;
+
+    // Flash geometry. Erase block e lives on channel e / blocksPerChannel,
+    // and physical page p belongs to erase block p / pagesPerBlock.
+    private int channels;
+    private int blocksPerChannel;
+    private byte flash[];
+    private int l2p[];                      // logical block -> page, or -1
+    private int p2l[];                      // page -> logical block, or -1
+    private int validPages[];               // per erase block
+    private int writePointer[];             // per erase block: next page
+    private int activeBlock[];              // per channel: block being filled
+    private int channelPages[];             // per channel: valid pages
+    private int incoming[];                 // per channel: queued moves
+    private int queuedOps[];                // per logical block: queued ops
+    private int queuedOn[];                 // per logical block: their channel
+    private int channelLimit;               // max valid pages per channel
+
+    // Blocks written since the last SYNC
+    private BitSet dirty;
+
+    // A disk request; it completes once all of its pages are done
+    private class Request {
+	int command;
+	int blockId;
+	int count;
+	byte[] buffer;
+	int ticket;
+	int remaining;
+	int arrived;                        // channels at a SYNC barrier
+
+	Request( int command, int blockId, int count, byte[] buffer ) {
+	    this.command = command;
+	    this.blockId = blockId;
+	    this.count = count;
+	    this.buffer = buffer;
+	    ticket = nextTicket++;
+	    remaining = ( command == SYNC ) ? channels : count;
+	}
+    }
+
+    // One page of a request, queued on a channel
+    private class Op {
+	Request request;
+	int index;                          // page within the request
+	boolean moves;                      // writes to a new channel
+	boolean writesBack;                 // last channel at a SYNC barrier
+
+	Op( Request request, int index ) {
+	    this.request = request;
+	    this.index = index;
+	}
+    }
+
+    // A flash channel. Only its own thread touches the erase blocks that
+    // belong to it; all FTL state is guarded by the Ssd monitor.
+    private class Channel extends Thread {
+	int id;
+	Vector<Op> queue = new Vector<Op>( );
+
+	Channel( int id ) {
+	    this.id = id;
+	}
+
+	public void run( ) {
+	    while ( true ) {
+		Op op = null;
+		int time;                   // microseconds of flash work
+		synchronized ( Ssd.this ) {
+		    while ( queue.isEmpty( ) && !needsCollection( id ) ) {
+			try {
+			    Ssd.this.wait( );
+			} catch ( InterruptedException e ) {
+			    SysLib.cerr( e.toString( ) + "\n" );
+			}
+		    }
+		    if ( queue.isEmpty( ) )
+			time = collect( id );   // background GC
+		    else {
+			op = queue.remove( 0 );
+			time = serve( id, op );
+		    }
+		}
+		flashDelay( time );
+		if ( op != null ) {
+		    if ( op.writesBack )
+			syncDirty( );
+		    int ticket = finish( op );
+		    if ( ticket >= 0 )
+			SysLib.disk( ticket ); // a disk interrupt
+		}
+	    }
+	}
+    }
+
+    private Channel channel[];
+    private Vector<Request> finished;       // served but not yet collected
+    private int pending;                    // accepted but not yet served
+    private int nextTicket;
+
+    // statistics
+    private long hostWrites;                // pages written for requests
+    private long gcWrites;                  // pages relocated by GC
+    private long erases;
+    private long requestsServed;
+
+    public Ssd( int totalBlocks, int channels ) {
+	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
+	blockSize = Disk.blockSize;
+	this.channels = ( channels > 0 ) ? channels : 1;
+	// the flash array holds at most 2GB
+	if ( flashSize( diskSize ) > Integer.MAX_VALUE ) {
+	    int fits = largestFitting( );
+	    SysLib.cerr( "threadOS: an SSD of " + diskSize + " blocks is too "
+			 + "large, using " + fits + " blocks\n" );
+	    diskSize = fits;
+	}
+	int pages = diskSize + diskSize * overProvision / 100;
+	int blocks = ( pages + pagesPerBlock - 1 ) / pagesPerBlock;
+	blocksPerChannel = ( blocks + this.channels - 1 ) / this.channels
+	    + spareBlocks;
+	int totalPages = this.channels * blocksPerChannel * pagesPerBlock;
+
+	flash = new byte[ totalPages * blockSize ];
+	l2p = new int[ diskSize ];
+	p2l = new int[ totalPages ];
+	validPages = new int[ this.channels * blocksPerChannel ];
+	writePointer = new int[ this.channels * blocksPerChannel ];
+	activeBlock = new int[ this.channels ];
+	channelPages = new int[ this.channels ];
+	incoming = new int[ this.channels ];
+	queuedOps = new int[ diskSize ];
+	queuedOn = new int[ diskSize ];
+	// a channel may take half of its overprovisioning in extra blocks,
+	// so that writes never crowd out the room GC needs
+	int share = ( diskSize + this.channels - 1 ) / this.channels;
+	channelLimit = share + share * overProvision / 200;
+	Arrays.fill( l2p, -1 );
+	Arrays.fill( p2l, -1 );
+	for ( int i = 0; i < this.channels; i++ )
+	    activeBlock[i] = i * blocksPerChannel;
+	dirty = new BitSet( diskSize );
+	finished = new Vector<Request>( );
+	channel = new Channel[ this.channels ];
+	for ( int i = 0; i < this.channels; i++ )
+	    channel[i] = new Channel( i );
+	load( );
+    }
+
+    // Bytes of flash a device of the given logical blocks needs
+    private long flashSize( long blocks ) {
+	long pages = blocks + blocks * overProvision / 100;
+	long eraseBlocks = ( pages + pagesPerBlock - 1 ) / pagesPerBlock;
+	long perChannel = ( eraseBlocks + channels - 1 ) / channels
+	    + spareBlocks;
+	return channels * perChannel * pagesPerBlock * blockSize;
+    }
+
+    // The most logical blocks whose flash fits in a byte array
+    private int largestFitting( ) {
+	int low = 1;
+	int high = diskSize;
+	while ( low < high ) {
+	    int middle = low + ( high - low + 1 ) / 2;
+	    if ( flashSize( middle ) <= Integer.MAX_VALUE )
+		low = middle;
+	    else
+		high = middle - 1;
+	}
+	return low;
+    }
+
+    // Copies the DISK file into flash, striping blocks over the channels
+    private void load( ) {
+	byte image[] = new byte[ diskSize * blockSize ];
+	int readableSize = 0;
+	try {
+	    FileInputStream ifstream = new FileInputStream( "DISK" );
+	    readableSize = ( ifstream.available( ) < image.length ) ?
+		ifstream.available( ) : image.length;
+	    ifstream.read( image, 0, readableSize );
+	    ifstream.close( );
+	} catch ( FileNotFoundException e ) {
+	    SysLib.cerr( "threadOS: DISK created\n" );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+	for ( int i = 0; i < diskSize; i++ )
+	    program( i % channels, i, image, i * blockSize );
+	// blocks missing from the DISK file must be written by the first SYNC
+	dirty.set( readableSize / blockSize, diskSize );
+    }
+
+    public void start( ) {
+	for ( int i = 0; i < channels; i++ )
+	    channel[i].start( );
+    }
+
+    public synchronized int read( int blockId, byte buffer[], int count ) {
+	if ( !validRange( blockId, count ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    return -1;
+	}
+	return submit( READ, blockId, count, buffer );
+    }
+
+    public synchronized int write( int blockId, byte buffer[], int count ) {
+	if ( !validRange( blockId, count ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
+	    return -1;
+	}
+	return submit( WRITE, blockId, count, buffer );
+    }
+
+    public synchronized int sync( ) {
+	return submit( SYNC, 0, 0, null );
+    }
+
+    public boolean validRange( int blockId, int count ) {
+	return blockId >= 0 && count > 0 && blockId + count <= diskSize;
+    }
+
+    // Splits a request into pages. A read goes to the channel holding the
+    // page, and a write goes to the shortest queue with room to spare. A
+    // page that still has ops queued follows them to their channel, so
+    // that the ops of one block are served in the order they came. A
+    // SYNC is queued on every channel, so it is not written back before
+    // each channel has served the writes queued ahead of it.
+    private int submit( int command, int blockId, int count, byte buffer[] ) {
+	if ( pending >= queueSize )
+	    return -1;
+	Request request = new Request( command, blockId, count, buffer );
+	pending++;
+	if ( command == SYNC ) {
+	    for ( int i = 0; i < channels; i++ )
+		channel[i].queue.add( new Op( request, i ) );
+	}
+	for ( int i = 0; i < count; i++ ) {
+	    int target;
+	    if ( queuedOps[blockId + i] > 0 )
+		target = queuedOn[blockId + i];
+	    else
+		target = ( command == READ ) ? channelOf( blockId + i )
+		    : shortestQueue( blockId + i );
+	    queuedOps[blockId + i]++;
+	    queuedOn[blockId + i] = target;
+	    Op op = new Op( request, i );
+	    if ( command == WRITE && target != channelOf( blockId + i ) ) {
+		op.moves = true;
+		incoming[target]++;
+	    }
+	    channel[target].queue.add( op );
+	}
+	notifyAll( );
+	return request.ticket;
+    }
+
+    private int channelOf( int blockId ) {
+	int page = l2p[blockId];
+	return ( page >= 0 ) ? page / pagesPerBlock / blocksPerChannel
+	    : blockId % channels;
+    }
+
+    // Staying on the block's own channel adds no valid page to it, so that
+    // channel is always allowed and wins ties
+    private int shortestQueue( int blockId ) {
+	int best = channelOf( blockId );
+	for ( int i = 0; i < channels; i++ ) {
+	    if ( channelPages[i] + incoming[i] < channelLimit
+		 && channel[i].queue.size( ) < channel[best].queue.size( ) )
+		best = i;
+	}
+	return best;
+    }
+
+    // Performs one page of a request and returns its flash time
+    private int serve( int id, Op op ) {
+	Request r = op.request;
+	int offset = op.index * blockSize;
+	switch ( r.command ) {
+	case READ:
+	    queuedOps[r.blockId + op.index]--;
+	    int page = l2p[r.blockId + op.index];
+	    System.arraycopy( flash, page * blockSize, r.buffer, offset,
+			      blockSize );
+	    return readTime;
+	case WRITE:
+	    if ( op.moves )
+		incoming[id]--;
+	    queuedOps[r.blockId + op.index]--;
+	    hostWrites++;
+	    dirty.set( r.blockId + op.index );
+	    return program( id, r.blockId + op.index, r.buffer, offset );
+	case SYNC:
+	    op.writesBack = ( ++r.arrived == channels );
+	    return 0;
+	}
+	return 0;
+    }
+
+    private synchronized int finish( Op op ) {
+	if ( --op.request.remaining > 0 )
+	    return -1;
+	pending--;
+	requestsServed++;
+	finished.add( op.request );
+	return op.request.ticket;
+    }
+
+    public synchronized boolean testAndResetReady( int ticket ) {
+	for ( int i = 0; i < finished.size( ); i++ ) {
+	    if ( finished.elementAt( i ).ticket == ticket ) {
+		finished.remove( i );
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    // Writes a logical block out of place on channel id and returns the
+    // flash time, including any garbage collection the write had to wait
+    // for. Host writes keep spareBlocks - 1 erased blocks in reserve so
+    // that GC always has room to relocate a victim's valid pages.
+    private int program( int id, int blockId, byte data[], int offset ) {
+	int time = 0;
+	while ( activeFull( id ) && freeBlocks( id ) < spareBlocks ) {
+	    int gcTime = collect( id );     // foreground GC
+	    if ( gcTime == 0 )
+		break;
+	    time += gcTime;
+	}
+	int page = allocate( id );
+	System.arraycopy( data, offset, flash, page * blockSize, blockSize );
+	invalidate( l2p[blockId] );
+	l2p[blockId] = page;
+	p2l[page] = blockId;
+	validPages[page / pagesPerBlock]++;
+	channelPages[id]++;
+	return time + programTime;
+    }
+
+    private boolean activeFull( int id ) {
+	return writePointer[activeBlock[id]] == pagesPerBlock;
+    }
+
+    // Returns the next free page of channel id, opening an erased block
+    // when the active one is full
+    private int allocate( int id ) {
+	if ( activeFull( id ) ) {
+	    int first = id * blocksPerChannel;
+	    for ( int b = first; b < first + blocksPerChannel; b++ ) {
+		if ( writePointer[b] == 0 ) {
+		    activeBlock[id] = b;
+		    break;
+		}
+	    }
+	}
+	int b = activeBlock[id];
+	return b * pagesPerBlock + writePointer[b]++;
+    }
+
+    private void invalidate( int page ) {
+	if ( page >= 0 ) {
+	    p2l[page] = -1;
+	    validPages[page / pagesPerBlock]--;
+	    channelPages[page / pagesPerBlock / blocksPerChannel]--;
+	}
+    }
+
+    private int freeBlocks( int id ) {
+	int free = 0;
+	int first = id * blocksPerChannel;
+	for ( int b = first; b < first + blocksPerChannel; b++ ) {
+	    if ( writePointer[b] == 0 && b != activeBlock[id] )
+		free++;
+	}
+	return free;
+    }
+
+    // The full block of channel id with the fewest valid pages, or -1 if
+    // no block has anything to reclaim
+    private int victim( int id ) {
+	int victim = -1;
+	int first = id * blocksPerChannel;
+	for ( int b = first; b < first + blocksPerChannel; b++ ) {
+	    if ( b == activeBlock[id] || writePointer[b] < pagesPerBlock
+		 || validPages[b] == pagesPerBlock )
+		continue;
+	    if ( victim < 0 || validPages[b] < validPages[victim] )
+		victim = b;
+	}
+	return victim;
+    }
+
+    private boolean needsCollection( int id ) {
+	return freeBlocks( id ) < spareBlocks && victim( id ) >= 0;
+    }
+
+    // Greedy garbage collection: moves the victim's valid pages to the
+    // active block, erases the victim and returns the flash time spent
+    private int collect( int id ) {
+	int victim = victim( id );
+	if ( victim < 0 )
+	    return 0;
+	int moved = 0;
+	int first = victim * pagesPerBlock;
+	for ( int page = first; page < first + pagesPerBlock; page++ ) {
+	    int blockId = p2l[page];
+	    if ( blockId < 0 )
+		continue;
+	    int target = allocate( id );
+	    System.arraycopy( flash, page * blockSize, flash,
+			      target * blockSize, blockSize );
+	    invalidate( page );
+	    l2p[blockId] = target;
+	    p2l[target] = blockId;
+	    validPages[target / pagesPerBlock]++;
+	    channelPages[id]++;
+	    moved++;
+	}
+	writePointer[victim] = 0;
+	gcWrites += moved;
+	erases++;
+	return moved * ( readTime + programTime ) + eraseTime;
+    }
+
+    // Writes back the blocks changed since the last SYNC, one positional
+    // write per run of adjacent dirty blocks. Each run is copied out of
+    // flash under the monitor, but the file I/O runs without it, so the
+    // other channels keep serving. A block written meanwhile is marked
+    // dirty again for the next SYNC.
+    private void syncDirty( ) {
+	BitSet runs;
+	synchronized ( this ) {
+	    if ( dirty.isEmpty( ) )
+		return;
+	    runs = ( BitSet )dirty.clone( );
+	    dirty.clear( );
+	}
+	try {
+	    RandomAccessFile file = new RandomAccessFile( "DISK", "rw" );
+	    byte run[] = new byte[ longestRun( runs ) * blockSize ];
+	    int start = runs.nextSetBit( 0 );
+	    while ( start >= 0 && start < diskSize ) {
+		int end = runs.nextClearBit( start );
+		copyRun( start, end, run );
+		ByteBuffer buffer = ByteBuffer.wrap( run, 0,
+						     ( end - start ) * blockSize );
+		long offset = ( long )start * blockSize;
+		while ( buffer.hasRemaining( ) )
+		    file.getChannel( ).write( buffer, offset
+					      + buffer.position( ) );
+		start = runs.nextSetBit( end );
+	    }
+	    file.close( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	    synchronized ( this ) {
+		dirty.or( runs );       // try again at the next SYNC
+	    }
+	}
+    }
+
+    private int longestRun( BitSet runs ) {
+	int longest = 0;
+	int start = runs.nextSetBit( 0 );
+	while ( start >= 0 && start < diskSize ) {
+	    int end = runs.nextClearBit( start );
+	    longest = Math.max( longest, end - start );
+	    start = runs.nextSetBit( end );
+	}
+	return longest;
+    }
+
+    // Copies logical blocks [start, end) from flash into run
+    private synchronized void copyRun( int start, int end, byte run[] ) {
+	for ( int i = start; i < end; i++ )
+	    System.arraycopy( flash, l2p[i] * blockSize, run,
+			      ( i - start ) * blockSize, blockSize );
+    }
+
+    // Thread.sleep rounds up to whole milliseconds, which is longer than
+    // most flash operations, so park until the deadline instead
+    private void flashDelay( int microseconds ) {
+	long deadline = System.nanoTime( ) + microseconds * 1000L;
+	long left;
+	while ( ( left = deadline - System.nanoTime( ) ) > 0 )
+	    LockSupport.parkNanos( left );
+    }
+
+    public synchronized long getHostWrites( ) {
+	return hostWrites;
+    }
+
+    public synchronized long getGcWrites( ) {
+	return gcWrites;
+    }
+
+    public synchronized long getErases( ) {
+	return erases;
+    }
+
+    public synchronized long getRequestsServed( ) {
+	return requestsServed;
+    }
+
+    // (host writes + GC relocations) / host writes
+    public synchronized double getWriteAmplification( ) {
+	return ( hostWrites == 0 ) ? 1.0
+	    : ( double )( hostWrites + gcWrites ) / hostWrites;
+    }
+}
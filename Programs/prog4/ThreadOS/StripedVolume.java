@@ -0,0 +1,113 @@
+// RAID-0: volume blocks are striped over the members in units of
+// stripeUnit blocks. Stripe unit s is stored on member s % n, in row s / n
+// of that member, so the blocks a request touches on one member are always
+// consecutive and each member gets at most one part per request.
+public class StripedVolume extends Volume {
+    private int stripeUnit;
+
+    public StripedVolume( int totalBlocks, int disks, int stripeUnit,
+			  int mode, DiskModel model ) {
+	super( totalBlocks, disks, memberBlocks( totalBlocks, disks,
+						 stripeUnit ),
+	       mode, model );
+	this.stripeUnit = ( stripeUnit > 0 ) ? stripeUnit : 1;
+    }
+
+    private static int memberBlocks( int totalBlocks, int disks,
+				     int stripeUnit ) {
+	int unit = ( stripeUnit > 0 ) ? stripeUnit : 1;
+	int rowSize = unit * ( ( disks > 0 ) ? disks : 1 );
+	return ( totalBlocks + rowSize - 1 ) / rowSize * unit;
+    }
+
+    private int diskOf( int blockId ) {
+	return blockId / stripeUnit % member.length;
+    }
+
+    private int memberBlockOf( int blockId ) {
+	return blockId / stripeUnit / member.length * stripeUnit
+	    + blockId % stripeUnit;
+    }
+
+    protected void read( Request request, int blockId, byte buffer[],
+			 int count ) {
+	split( request, READ, blockId, buffer, count );
+    }
+
+    protected void write( Request request, int blockId, byte buffer[],
+			  int count ) {
+	split( request, WRITE, blockId, buffer, count );
+    }
+
+    // Submits one part per member the request touches. A request that fits
+    // on one member uses the caller's buffer; otherwise each part gets its
+    // own buffer, gathered from the caller's before a write and scattered
+    // back into it after a read.
+    private void split( Request request, int command, int blockId,
+			byte buffer[], int count ) {
+	if ( diskOf( blockId ) == diskOf( blockId + count - 1 )
+	     && count <= stripeUnit ) {
+	    submit( new Part( request, diskOf( blockId ), command,
+			      memberBlockOf( blockId ), buffer, count ) );
+	    return;
+	}
+	int first[] = new int[ member.length ];
+	int blocks[] = new int[ member.length ];
+	for ( int i = blockId; i < blockId + count; i++ ) {
+	    if ( blocks[diskOf( i )]++ == 0 )
+		first[diskOf( i )] = memberBlockOf( i );
+	}
+	for ( int d = 0; d < member.length; d++ ) {
+	    if ( blocks[d] == 0 )
+		continue;
+	    byte part[] = new byte[ blocks[d] * Disk.blockSize ];
+	    if ( command == WRITE ) {
+		copy( blockId, count, d, first[d], buffer, part, true );
+		submit( new Part( request, d, WRITE, first[d], part,
+				  blocks[d] ) );
+	    } else
+		submit( new ScatterPart( request, d, first[d], part, blocks[d],
+					 blockId, buffer, count ) );
+	}
+    }
+
+    // A read part of a request that spans several members
+    private class ScatterPart extends Part {
+	int volumeBlockId;
+	byte volumeBuffer[];
+	int volumeCount;
+
+	ScatterPart( Request request, int disk, int blockId, byte buffer[],
+		     int count, int volumeBlockId, byte volumeBuffer[],
+		     int volumeCount ) {
+	    super( request, disk, READ, blockId, buffer, count );
+	    this.volumeBlockId = volumeBlockId;
+	    this.volumeBuffer = volumeBuffer;
+	    this.volumeCount = volumeCount;
+	}
+
+	void done( ) {
+	    copy( volumeBlockId, volumeCount, disk, blockId, volumeBuffer,
+		  buffer, false );
+	}
+    }
+
+    // Copies the blocks of the request that live on member disk between the
+    // caller's buffer and the part's buffer, which starts at member block
+    // start
+    private void copy( int blockId, int count, int disk, int start,
+		       byte buffer[], byte part[], boolean toPart ) {
+	for ( int i = blockId; i < blockId + count; i++ ) {
+	    if ( diskOf( i ) != disk )
+		continue;
+	    int volumeOffset = ( i - blockId ) * Disk.blockSize;
+	    int partOffset = ( memberBlockOf( i ) - start ) * Disk.blockSize;
+	    if ( toPart )
+		System.arraycopy( buffer, volumeOffset, part, partOffset,
+				  Disk.blockSize );
+	    else
+		System.arraycopy( part, partOffset, buffer, volumeOffset,
+				  Disk.blockSize );
+	}
+    }
+}
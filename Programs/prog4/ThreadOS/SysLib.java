@@ -12,8 +12,12 @@ public class SysLib {
     }
 
     public static int boot( ) {
+	return boot( null );
+    }
+
+    public static int boot( String args[] ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
-				 Kernel.BOOT, 0, null );
+				 Kernel.BOOT, 0, args );
     }
 
     public static int exit( ) {
@@ -27,8 +31,13 @@ public class SysLib {
     }
 
     public static int disk( ) {
+	return disk( -1 );
+    }
+
+    // Disk interrupt for the request with the given ticket
+    public static int disk( int ticket ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_DISK,
-				 0, 0, null );
+				 0, ticket, null );
     }
 
     public static int cin( StringBuffer s ) {
@@ -56,6 +65,85 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // Reads b.length / Disk.blockSize consecutive blocks starting at blkNumber
+    public static int rawreadv( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, blkNumber, b );
+    }
+
+    // Writes b.length / Disk.blockSize consecutive blocks starting at blkNumber
+    public static int rawwritev( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, blkNumber, b );
+    }
+
+    // Sets the calling thread's disk I/O class, IoScheduler.REALTIME,
+    // BEST_EFFORT, or IDLE, and its level within the class, 0 (highest)
+    // to 7
+    public static int ionice( int ioClass, int level ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.IONICE, ioClass, Integer.valueOf( level ) );
+    }
+
+    // Starts reading b.length / Disk.blockSize consecutive blocks starting
+    // at blkNumber and returns a request id at once, or -1. b must not be
+    // used until iowait( ) or iopoll( ) has returned the id.
+    public static int aread( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.AREAD, blkNumber, b );
+    }
+
+    // Starts writing b.length / Disk.blockSize consecutive blocks, as aread
+    public static int awrite( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.AWRITE, blkNumber, b );
+    }
+
+    // Waits until the request id has completed
+    public static int iowait( int id ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.IOWAIT, id, null );
+    }
+
+    // Returns the id of a completed request, or -1 if none has completed
+    public static int iopoll( ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.IOPOLL, 0, null );
+    }
+
+    // Registers the calling thread's ring, or drops it if ring is null
+    public static int ringSetup( IoRing ring ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RING_SETUP, 0, ring );
+    }
+
+    // Submits every operation queued in the ring and waits until at least
+    // minComplete completions can be reaped. Returns the number submitted.
+    public static int ringEnter( int minComplete ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RING_ENTER, minComplete, null );
+    }
+
+    // Snapshots of the disk, taken and rolled back to in place of a
+    // reformat. They are kept in memory until ThreadOS shuts down. The
+    // cache is not rolled back: csync( ) before rolling back and flush( )
+    // after it.
+    public static int snapshot( String name ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SNAPSHOT, 0, name );
+    }
+
+    // Restores the disk to the snapshot and drops the newer ones
+    public static int rollback( String name ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.ROLLBACK, 0, name );
+    }
+
+    public static int discard( String name ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.DISCARD, 0, name );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -81,6 +169,15 @@ public class SysLib {
 				 Kernel.CSYNC, 0, null );
     }
 
+    // Fills stats[0] with the cache hits and stats[1] with the misses. If
+    // stats is longer, stats[2] gets the misses the admission filter kept
+    // out of the cache, stats[3] the misses that replaced a dirty block, and
+    // stats[4] the blocks written back in the background.
+    public static int cstats( long stats[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CSTATS, 0, stats );
+    }
+
     public static String[] stringToArgs( String s ) {
 	StringTokenizer token = new StringTokenizer( s," " );
 	String[] progArgs = new String[ token.countTokens( ) ];
@@ -5,6 +5,7 @@ public class TCB {
     private boolean terminated = false;
     private int sleepTime = 0;
     public FileTableEntry[] ftEnt = null; // added for the file system
+    private IoRing ring = null;           // set with SysLib.ringSetup( )
 
     public TCB( Thread newThread, int myTid, int parentTid ) {
 	thread = newThread;
@@ -40,6 +41,14 @@ public class TCB {
 	return terminated;
     }
 
+    public synchronized IoRing getRing( ) {
+	return ring;
+    }
+
+    public synchronized void setRing( IoRing newRing ) {
+	ring = newRing;
+    }
+
     // added for the file system
     public synchronized int getFd( FileTableEntry entry ) {
 	if ( entry == null )
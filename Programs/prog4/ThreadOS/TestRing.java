@@ -0,0 +1,89 @@
+/**
+ * Purpose - Testing program for SysLib.ringEnter( ). Each case asks for more
+ * completions than the operations still in flight can ever deliver, which
+ * must return once nothing is left in flight instead of sleeping forever:
+ * 1. more completions than the operations submitted,
+ * 2. completions reaped by an earlier ringEnter( ) counted again,
+ * 3. operations held back because the completion ring is short of room.
+ * Usage - l TestRing
+ */
+public class TestRing extends Thread
+{
+    //Operations per case, each reading its own block
+    private static final int operations = 4;
+
+    public TestRing()
+    {
+    }
+
+    public void run()
+    {
+        byte[][] buffers = new byte[operations][Disk.blockSize];
+        IoRing ring = new IoRing(operations, buffers);
+        SysLib.ringSetup(ring);
+
+        //Case 1: ask for twice the operations submitted
+        prepareReads(ring, 0, operations);
+        int submitted = SysLib.ringEnter(2 * operations);
+        report(1, submitted == operations && reap(ring) == operations);
+
+        //Case 2: the completions of an earlier call were reaped already
+        prepareReads(ring, 0, operations);
+        SysLib.ringEnter(operations);
+        reap(ring);
+        prepareReads(ring, 0, 1);
+        submitted = SysLib.ringEnter(operations + 1);
+        report(2, submitted == 1 && reap(ring) == 1);
+
+        //Case 3: a one-entry ring holds back a third operation until one of
+        //the two unreaped completions is reaped
+        IoRing small = new IoRing(1, buffers);
+        SysLib.ringSetup(small);
+        int entered = 0;
+        for (int i = 0; i < 2; i++)
+        {
+            prepareReads(small, i, 1);
+            entered += SysLib.ringEnter(0);
+        }
+        prepareReads(small, 2, 1);
+        submitted = SysLib.ringEnter(3);
+        report(3, entered == 2 && submitted == 0 && reap(small) == 2);
+
+        SysLib.ringSetup(null);
+        SysLib.exit();
+    }
+
+    /**
+     * Queues count reads of consecutive blocks from first on, one buffer each.
+     */
+    private void prepareReads(IoRing ring, int first, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            ring.prepare(Kernel.RAWREAD, first + i, i, i);
+        }
+    }
+
+    /**
+     * Reaps every completion there is. Returns how many succeeded.
+     */
+    private int reap(IoRing ring)
+    {
+        int succeeded = 0;
+        IoRing.Entry entry;
+        while ((entry = ring.reap()) != null)
+        {
+            if (entry.getResult() == Kernel.OK)
+            {
+                succeeded++;
+            }
+        }
+        return succeeded;
+    }
+
+    private void report(int testCase, boolean passed)
+    {
+        SysLib.cout("Case " + testCase + ": "
+                    + (passed ? "passed" : "failed") + "\n");
+    }
+}
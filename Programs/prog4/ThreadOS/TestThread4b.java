@@ -0,0 +1,82 @@
+/**
+ * Purpose - A thread of Test4b. Waits for the other threads of its round,
+ * then reads cached blocks as fast as it can.
+ * Usage - TestThread4b id blocks hits
+ */
+public class TestThread4b extends Thread
+{
+    private int id, blocks, hits;
+    //Shared by the threads of a round
+    private static int threads, started, finished;
+    private static long startTime, endTime;
+
+    public TestThread4b(String args[])
+    {
+        id = Integer.parseInt(args[0]);
+        blocks = Integer.parseInt(args[1]);
+        hits = Integer.parseInt(args[2]);
+    }
+
+    /**
+     * Starts a round of the given number of threads
+     */
+    public static synchronized void reset(int count)
+    {
+        threads = count;
+        started = 0;
+        finished = 0;
+    }
+
+    /**
+     * Gets the time from the start of the round until its last thread was
+     * done
+     */
+    public static synchronized long getElapsed()
+    {
+        return endTime - startTime;
+    }
+
+    /**
+     * Waits until every thread of the round has started, so that they all
+     * read at the same time. Threads are started one by one by the Scheduler.
+     */
+    private static synchronized void arrive()
+    {
+        if (++started == threads)
+        {
+            startTime = System.currentTimeMillis();
+            TestThread4b.class.notifyAll();
+        }
+        while (started < threads)
+        {
+            try
+            {
+                TestThread4b.class.wait();
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+
+    private static synchronized void depart()
+    {
+        if (++finished == threads)
+        {
+            endTime = System.currentTimeMillis();
+        }
+    }
+
+    public void run()
+    {
+        byte[] buffer = new byte[Disk.blockSize];
+        arrive();
+        //Every thread starts at a different block
+        for (int i = 0; i < hits; i++)
+        {
+            SysLib.cread((id + i) % blocks, buffer);
+        }
+        depart();
+        SysLib.exit();
+    }
+}
@@ -0,0 +1,306 @@
+import java.util.*;
+
+// Two tiers: a small fast member, DISK.0, without latency, in front of a
+// large slow member, DISK.1, that has a home for every volume block at
+// the block's own number. Accesses are counted per block, and the counts
+// are halved every decayPeriod accesses so that they follow what is hot
+// now. A background thread promotes the hottest slow blocks into the fast
+// tier, demoting its coldest blocks to make room. A block written in the
+// fast tier is dirty until it is written back to its home, on demotion
+// or when the volume is synced.
+public class TieredVolume extends Volume {
+    private static final int FAST = 0;
+    private static final int SLOW = 1;
+    private final int migratePeriod = 50;   // ms between migration rounds
+    private final int migrateBatch = 8;     // blocks moved per round at most
+    private final int minHeat = 2;          // accesses before a promotion
+    private int decayPeriod;                // accesses between halvings
+    private int accesses;
+
+    private Hashtable<Integer, Integer> heat;    // volume block->accesses
+    private Hashtable<Integer, Integer> slotOf;  // volume block->fast block
+    private int owner[];                    // fast block->volume block or -1
+    private boolean dirty[];                // fast block newer than its home
+    private int version[];                  // fast block: writes so far
+
+    // A promotion gives up if the block it copies is written meanwhile.
+    // The members serve requests on the same block in the order they were
+    // submitted, so a write submitted before the copy began is in the copy.
+    private int watched = -1;
+    private boolean written;
+
+    // statistics
+    private long fastBlocks;                // blocks served by each tier
+    private long slowBlocks;
+    private long promotions;
+    private long demotions;
+
+    public TieredVolume( int totalBlocks, int fastBlocks, int mode,
+			 DiskModel model ) {
+	super( totalBlocks,
+	       new int[] { Math.max( fastBlocks, 1 ), totalBlocks },
+	       new DiskModel[] { new ZeroDiskModel( ), model }, mode );
+	int slots = Math.max( fastBlocks, 1 );
+	owner = new int[ slots ];
+	Arrays.fill( owner, -1 );
+	dirty = new boolean[ slots ];
+	version = new int[ slots ];
+	decayPeriod = Math.max( 4 * slots, 64 );
+	heat = new Hashtable<Integer, Integer>( );
+	slotOf = new Hashtable<Integer, Integer>( );
+    }
+
+    public void start( ) {
+	super.start( );
+	new Migrator( ).start( );
+    }
+
+    // Where a volume block is: its fast block, or -1 if it is at home
+    private int slot( int blockId ) {
+	Integer slot = slotOf.get( blockId );
+	return ( slot != null ) ? slot : -1;
+    }
+
+    private int heat( int blockId ) {
+	Integer h = heat.get( blockId );
+	return ( h != null ) ? h : 0;
+    }
+
+    private void touch( int blockId ) {
+	heat.put( blockId, heat( blockId ) + 1 );
+	if ( ++accesses < decayPeriod )
+	    return;
+	accesses = 0;
+	Iterator<Map.Entry<Integer, Integer>> i = heat.entrySet( ).iterator( );
+	while ( i.hasNext( ) ) {
+	    Map.Entry<Integer, Integer> entry = i.next( );
+	    if ( entry.getValue( ) <= 1 )
+		i.remove( );
+	    else
+		entry.setValue( entry.getValue( ) / 2 );
+	}
+    }
+
+    // The run of blocks from blockId that is consecutive on one tier
+    private int run( int blockId, int end ) {
+	int slot = slot( blockId );
+	int run = 1;
+	while ( blockId + run < end
+		&& ( ( slot < 0 && slot( blockId + run ) < 0 )
+		     || ( slot >= 0 && slot( blockId + run ) == slot + run ) ) )
+	    run++;
+	return run;
+    }
+
+    protected void read( Request request, int blockId, byte buffer[],
+			 int count ) {
+	for ( int i = blockId; i < blockId + count; ) {
+	    int slot = slot( i );
+	    int disk = ( slot >= 0 ) ? FAST : SLOW;
+	    int start = ( slot >= 0 ) ? slot : i;
+	    int run = run( i, blockId + count );
+	    account( i, run, disk );
+	    if ( run == count )
+		submit( new Part( request, disk, READ, start, buffer, count ) );
+	    else
+		submit( new CopyPart( request, disk, start,
+				      new byte[ run * Disk.blockSize ], run,
+				      buffer,
+				      ( i - blockId ) * Disk.blockSize ) );
+	    i += run;
+	}
+    }
+
+    protected void write( Request request, int blockId, byte buffer[],
+			  int count ) {
+	if ( watched >= blockId && watched < blockId + count )
+	    written = true;
+	for ( int i = blockId; i < blockId + count; ) {
+	    int slot = slot( i );
+	    int disk = ( slot >= 0 ) ? FAST : SLOW;
+	    int start = ( slot >= 0 ) ? slot : i;
+	    int run = run( i, blockId + count );
+	    account( i, run, disk );
+	    for ( int s = 0; slot >= 0 && s < run; s++ ) {
+		dirty[slot + s] = true;
+		version[slot + s]++;
+	    }
+	    int offset = ( i - blockId ) * Disk.blockSize;
+	    submit( new Part( request, disk, WRITE, start,
+			      ( run == count ) ? buffer
+			      : Arrays.copyOfRange( buffer, offset, offset
+						    + run * Disk.blockSize ),
+			      run ) );
+	    i += run;
+	}
+    }
+
+    private void account( int blockId, int count, int disk ) {
+	for ( int i = blockId; i < blockId + count; i++ )
+	    touch( i );
+	if ( disk == FAST )
+	    fastBlocks += count;
+	else
+	    slowBlocks += count;
+    }
+
+    // Writes every dirty fast block back home before the members are synced
+    protected void sync( Request request ) {
+	Writeback writeback = new Writeback( );
+	for ( int s = 0; s < owner.length; s++ ) {
+	    if ( owner[s] >= 0 && dirty[s] ) {
+		writeback.pending++;
+		submit( new WritebackRead( request, s, writeback ) );
+	    }
+	}
+	if ( writeback.pending == 0 )
+	    super.sync( request );
+    }
+
+    private class Writeback {
+	int pending;                        // fast blocks not yet read
+    }
+
+    // Reads a dirty fast block; once done, writes it to its home, and the
+    // last one syncs the members
+    private class WritebackRead extends Part {
+	Writeback writeback;
+	int home;
+	int readVersion;
+
+	WritebackRead( Request request, int slot, Writeback writeback ) {
+	    super( request, FAST, READ, slot, new byte[ Disk.blockSize ], 1 );
+	    this.writeback = writeback;
+	    home = owner[slot];
+	    readVersion = version[slot];
+	}
+
+	void done( ) {
+	    // a block demoted meanwhile has been written home already
+	    if ( owner[blockId] == home ) {
+		submit( new Part( request, SLOW, WRITE, home, buffer, 1 ) );
+		if ( version[blockId] == readVersion )
+		    dirty[blockId] = false;
+	    }
+	    if ( --writeback.pending == 0 )
+		TieredVolume.super.sync( request );
+	}
+    }
+
+    private class Migrator extends Thread {
+	public void run( ) {
+	    while ( true ) {
+		try {
+		    Thread.sleep( migratePeriod );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+		int moved = 0;
+		while ( moved < migrateBatch && migrate( ) )
+		    moved++;
+	    }
+	}
+    }
+
+    // Moves the hottest block at home into the fast tier, in place of the
+    // coldest fast block if the tier is full. Returns false if no block is
+    // hot enough or the move was given up. User requests go on while the
+    // copies are in flight, since await( ) releases the volume lock.
+    private synchronized boolean migrate( ) {
+	int hot = -1;
+	Enumeration<Integer> e = heat.keys( );
+	while ( e.hasMoreElements( ) ) {
+	    int blockId = e.nextElement( );
+	    if ( slot( blockId ) < 0 && heat( blockId ) >= minHeat
+		 && ( hot < 0 || heat( blockId ) > heat( hot ) ) )
+		hot = blockId;
+	}
+	if ( hot < 0 )
+	    return false;
+	int slot = 0;
+	for ( int s = 1; s < owner.length && owner[slot] >= 0; s++ ) {
+	    if ( owner[s] < 0 || heat( owner[s] ) < heat( owner[slot] ) )
+		slot = s;
+	}
+	// a block has to be clearly hotter to take another's place
+	if ( owner[slot] >= 0 && heat( owner[slot] ) + 1 >= heat( hot ) )
+	    return false;
+	if ( owner[slot] >= 0 && !demote( slot ) )
+	    return false;
+	return promote( hot, slot );
+    }
+
+    private boolean demote( int slot ) {
+	int home = owner[slot];
+	if ( dirty[slot] ) {
+	    byte data[] = new byte[ Disk.blockSize ];
+	    int readVersion = version[slot];
+	    Request request = beginInternal( );
+	    submit( new Part( request, FAST, READ, slot, data, 1 ) );
+	    await( request );
+	    if ( version[slot] != readVersion )
+		return false;               // written meanwhile
+	    // reads of the block stay on the fast tier until its home is
+	    // written
+	    request = beginInternal( );
+	    submit( new Part( request, SLOW, WRITE, home, data, 1 ) );
+	    await( request );
+	    if ( version[slot] != readVersion )
+		return false;
+	}
+	unmap( slot );
+	demotions++;
+	return true;
+    }
+
+    private boolean promote( int blockId, int slot ) {
+	byte data[] = new byte[ Disk.blockSize ];
+	watched = blockId;
+	written = false;
+	Request request = beginInternal( );
+	submit( new Part( request, SLOW, READ, blockId, data, 1 ) );
+	await( request );
+	if ( !written ) {
+	    // requests for the block stay at home until the copy is written
+	    request = beginInternal( );
+	    submit( new Part( request, FAST, WRITE, slot, data, 1 ) );
+	    await( request );
+	}
+	watched = -1;
+	if ( written )
+	    return false;
+	slotOf.put( blockId, slot );
+	owner[slot] = blockId;
+	dirty[slot] = false;
+	promotions++;
+	return true;
+    }
+
+    private void unmap( int slot ) {
+	slotOf.remove( owner[slot] );
+	owner[slot] = -1;
+	dirty[slot] = false;
+    }
+
+    // Share of the blocks read or written that the fast tier served
+    public synchronized double getFastHitRatio( ) {
+	long blocks = fastBlocks + slowBlocks;
+	return ( blocks > 0 ) ? ( double )fastBlocks / blocks : 0;
+    }
+
+    public synchronized long getFastBlocks( ) {
+	return fastBlocks;
+    }
+
+    public synchronized long getSlowBlocks( ) {
+	return slowBlocks;
+    }
+
+    public synchronized long getPromotions( ) {
+	return promotions;
+    }
+
+    public synchronized long getDemotions( ) {
+	return demotions;
+    }
+}
@@ -0,0 +1,308 @@
+import java.util.*;
+
+// A block device built from several member disks, each with its own
+// DISK.n file. A volume request is split into parts, one request to a
+// member disk each. The members serve their parts in parallel, and the
+// volume request completes when all of its parts have. Subclasses decide
+// how volume blocks are laid out on the members.
+public abstract class Volume implements BlockDevice {
+    protected static final int READ = 1;
+    protected static final int WRITE = 2;
+    protected static final int SYNC = 3;
+
+    private final int queueSize = 32;      // max volume requests pending
+    protected int volumeSize;               // blocks
+    protected Disk member[];
+
+    // A volume request; done once none of its parts is outstanding
+    protected class Request {
+	int ticket;
+	int parts;                          // parts not yet done
+	boolean internal;                   // issued by the volume itself
+
+	Request( ) {
+	    ticket = nextTicket++;
+	}
+    }
+
+    // A request to one member disk. done( ) runs under the volume lock when
+    // the member has served it, and may submit more parts of its request.
+    protected class Part {
+	Request request;
+	int disk;
+	int command;
+	int blockId;
+	byte buffer[];
+	int count;
+	int ticket;                         // the member's ticket
+
+	Part( Request request, int disk, int command, int blockId,
+	      byte buffer[], int count ) {
+	    this.request = request;
+	    this.disk = disk;
+	    this.command = command;
+	    this.blockId = blockId;
+	    this.buffer = buffer;
+	    this.count = count;
+	}
+
+	void done( ) {
+	}
+    }
+
+    // A read of part of a volume request, copied into the caller's buffer
+    // at offset once done
+    protected class CopyPart extends Part {
+	byte volumeBuffer[];
+	int offset;
+
+	CopyPart( Request request, int disk, int blockId, byte buffer[],
+		  int count, byte volumeBuffer[], int offset ) {
+	    super( request, disk, READ, blockId, buffer, count );
+	    this.volumeBuffer = volumeBuffer;
+	    this.offset = offset;
+	}
+
+	void done( ) {
+	    System.arraycopy( buffer, 0, volumeBuffer, offset,
+			      count * Disk.blockSize );
+	}
+    }
+
+    private int nextTicket;
+    private int pending;                    // accepted but not yet done
+    private Vector<Part> submitted;         // accepted by a member
+    private Vector<Part> waiting;           // the member's queue was full
+    private Vector<Request> finished;       // done but not yet collected
+
+    // Creates disks members of memberBlocks blocks each, backed by the
+    // files DISK.0, DISK.1, ...
+    protected Volume( int totalBlocks, int disks, int memberBlocks,
+		      int mode, DiskModel model ) {
+	this( totalBlocks, sameBlocks( disks, memberBlocks ),
+	      sameModels( disks, model ), mode );
+    }
+
+    // Creates one member per entry of memberBlocks, of that many blocks
+    // and timed by the matching model
+    protected Volume( int totalBlocks, int memberBlocks[],
+		      DiskModel models[], int mode ) {
+	volumeSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
+	member = new Disk[ memberBlocks.length ];
+	for ( int i = 0; i < member.length; i++ )
+	    member[i] = new Disk( memberBlocks[i], mode, models[i],
+				  "DISK." + i, this );
+	submitted = new Vector<Part>( );
+	waiting = new Vector<Part>( );
+	finished = new Vector<Request>( );
+    }
+
+    private static int[] sameBlocks( int disks, int memberBlocks ) {
+	int blocks[] = new int[ ( disks > 0 ) ? disks : 1 ];
+	Arrays.fill( blocks, memberBlocks );
+	return blocks;
+    }
+
+    private static DiskModel[] sameModels( int disks, DiskModel model ) {
+	DiskModel models[] = new DiskModel[ ( disks > 0 ) ? disks : 1 ];
+	Arrays.fill( models, model );
+	return models;
+    }
+
+    public void start( ) {
+	for ( int i = 0; i < member.length; i++ )
+	    member[i].start( );
+    }
+
+    public synchronized int read( int blockId, byte buffer[], int count ) {
+	if ( !validRange( blockId, count ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    return -1;
+	}
+	Request request = begin( );
+	if ( request == null )
+	    return -1;
+	read( request, blockId, buffer, count );
+	return request.ticket;
+    }
+
+    public synchronized int write( int blockId, byte buffer[], int count ) {
+	if ( !validRange( blockId, count ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
+	    return -1;
+	}
+	Request request = begin( );
+	if ( request == null )
+	    return -1;
+	write( request, blockId, buffer, count );
+	return request.ticket;
+    }
+
+    public synchronized int sync( ) {
+	Request request = begin( );
+	if ( request == null )
+	    return -1;
+	sync( request );
+	return request.ticket;
+    }
+
+    public boolean validRange( int blockId, int count ) {
+	return blockId >= 0 && count > 0 && blockId + count <= volumeSize;
+    }
+
+    // Split a volume request into parts and submit them. Called under the
+    // volume lock.
+    protected abstract void read( Request request, int blockId,
+				  byte buffer[], int count );
+
+    protected abstract void write( Request request, int blockId,
+				   byte buffer[], int count );
+
+    // Syncs every member. Called under the volume lock.
+    protected void sync( Request request ) {
+	for ( int i = 0; i < member.length; i++ )
+	    submit( new Part( request, i, SYNC, 0, null, 0 ) );
+    }
+
+    private Request begin( ) {
+	if ( pending >= queueSize )
+	    return null;
+	pending++;
+	return new Request( );
+    }
+
+    // Starts a request of the volume's own, such as a rebuild step. The
+    // kernel never sees it; await( ) waits for it instead.
+    protected Request beginInternal( ) {
+	Request request = new Request( );
+	request.internal = true;
+	return request;
+    }
+
+    protected synchronized void await( Request request ) {
+	while ( request.parts > 0 ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+    }
+
+    // Parts to one member are issued in submission order
+    protected void submit( Part part ) {
+	part.request.parts++;
+	if ( !isWaiting( part.disk ) && issue( part ) )
+	    submitted.add( part );
+	else
+	    waiting.add( part );
+    }
+
+    private boolean isWaiting( int disk ) {
+	for ( int i = 0; i < waiting.size( ); i++ ) {
+	    if ( waiting.elementAt( i ).disk == disk )
+		return true;
+	}
+	return false;
+    }
+
+    private boolean issue( Part part ) {
+	Disk disk = member[part.disk];
+	switch ( part.command ) {
+	case READ:
+	    part.ticket = disk.read( part.blockId, part.buffer, part.count );
+	    break;
+	case WRITE:
+	    part.ticket = disk.write( part.blockId, part.buffer, part.count );
+	    break;
+	default:
+	    part.ticket = disk.sync( );
+	}
+	return part.ticket >= 0;
+    }
+
+    // Called by a member disk when it has served a part. Raises the disk
+    // interrupt outside the volume lock, for the same reason Disk does.
+    public void completed( Disk disk, int ticket ) {
+	int done = finishPart( disk, ticket );
+	if ( done >= 0 )
+	    SysLib.disk( done ); // a disk interrupt
+    }
+
+    // Returns the ticket of the volume request this part completed, or -1
+    private synchronized int finishPart( Disk disk, int ticket ) {
+	disk.testAndResetReady( ticket );
+	Part part = null;
+	for ( int i = 0; i < submitted.size( ); i++ ) {
+	    Part p = submitted.elementAt( i );
+	    if ( member[p.disk] == disk && p.ticket == ticket ) {
+		part = submitted.remove( i );
+		break;
+	    }
+	}
+	if ( part == null )
+	    return -1;
+	part.done( );
+	// a member queue has room again; a member whose oldest waiting part
+	// is still refused takes no younger ones
+	boolean full[] = new boolean[ member.length ];
+	for ( int i = 0; i < waiting.size( ); ) {
+	    Part next = waiting.elementAt( i );
+	    if ( !full[next.disk] && issue( next ) )
+		submitted.add( waiting.remove( i ) );
+	    else {
+		full[next.disk] = true;
+		i++;
+	    }
+	}
+	if ( --part.request.parts > 0 )
+	    return -1;
+	if ( part.request.internal ) {
+	    notifyAll( );
+	    return -1;
+	}
+	pending--;
+	finished.add( part.request );
+	return part.request.ticket;
+    }
+
+    public synchronized boolean testAndResetReady( int ticket ) {
+	for ( int i = 0; i < finished.size( ); i++ ) {
+	    if ( finished.elementAt( i ).ticket == ticket ) {
+		finished.remove( i );
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    public int getMembers( ) {
+	return member.length;
+    }
+
+    public long getRequestsServed( int disk ) {
+	return member[disk].getRequestsServed( );
+    }
+
+    public long getSeekDistance( int disk ) {
+	return member[disk].getSeekDistance( );
+    }
+
+    public long getMergedRequests( int disk ) {
+	return member[disk].getMergedRequests( );
+    }
+
+    public void setPlugTime( int milliseconds ) {
+	for ( int i = 0; i < member.length; i++ )
+	    member[i].setPlugTime( milliseconds );
+    }
+
+    public void setPolicy( int policy ) {
+	for ( int i = 0; i < member.length; i++ )
+	    member[i].setPolicy( policy );
+    }
+
+    public long getReadLatency( int disk, double percent ) {
+	return member[disk].getReadLatency( percent );
+    }
+}
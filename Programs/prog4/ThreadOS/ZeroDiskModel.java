@@ -0,0 +1,7 @@
+// A disk without latency, for benchmarking the software paths above it
+public class ZeroDiskModel implements DiskModel {
+    public int accessTime( int headBlockId, int blockId, int count,
+			   int trackSize ) {
+	return 0;
+    }
+}